@@ -21,9 +21,9 @@ import android.annotation.TargetApi;
 import android.content.Context;
 import android.content.res.AssetFileDescriptor;
 import android.content.res.TypedArray;
+import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.media.MediaDataSource;
-import android.media.MediaMetadataRetriever;
 import android.media.MediaPlayer;
 import android.net.Uri;
 import android.os.Build;
@@ -33,11 +33,14 @@ import android.util.Log;
 import android.view.Surface;
 import android.view.View;
 import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
 import android.widget.LinearLayout;
 
 import java.io.FileDescriptor;
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 @SuppressLint("ViewConstructor")
 public class AlphaMovieView extends GLTextureView {
@@ -46,7 +49,9 @@ public class AlphaMovieView extends GLTextureView {
 
     private static final int NOT_DEFINED = -1;
     private static final int NOT_DEFINED_COLOR = 0;
-    private static final int TIME_DETECTION_INTERVAL_MS = 100;
+
+    private static final int PLAYBACK_ENGINE_MEDIA_PLAYER = 0;
+    private static final int PLAYBACK_ENGINE_MEDIA_CODEC = 1;
 
     private static final String TAG = "VideoSurfaceView";
 
@@ -54,17 +59,42 @@ public class AlphaMovieView extends GLTextureView {
     private float videoAspectRatio = VIEW_ASPECT_RATIO;
 
     VideoRenderer renderer;
-    private MediaPlayer mediaPlayer;
+    private PlaybackEngine engine;
+    private Surface videoSurface;
+    private Runnable onEnginePrepared;
+    private MediaPlayer.OnErrorListener onErrorListener;
+    private MediaPlayer.OnSeekCompleteListener onSeekCompleteListener;
 
     private OnVideoStartedListener onVideoStartedListener;
     private OnVideoEndedListener onVideoEndedListener;
+    private OnAudioInfoListener onAudioInfoListener;
 
     private boolean isSurfaceCreated;
     private boolean isDataSourceSet;
+    private VideoSource videoSource;
+    private boolean shareDecoder;
+    private SharedVideoStream sharedStream;
+    // Whether the video source was set on the engine, which only happens once a decoder is granted
+    private boolean engineHasSource;
+    // Where to continue once a decoder is granted again after it was revoked
+    private long resumePositionMs;
+    // Set when resumePositionMs is the start of a segment, which must be hit exactly
+    private boolean resumeAtSegment;
+    private boolean looping = true;
+    private boolean resumePlaying = true;
 
     private float accuracy;
     private int alphaColor;
     private boolean isPacked;
+    private PackingLayout packingLayout = PackingLayout.ALPHA_BOTTOM;
+    private int atlasColumns = 1;
+    private int atlasRows = 1;
+    private int atlasCell;
+    private final Map<String, Segment> segments = new HashMap<>();
+    private String segmentName;
+    private float alphaScale = 1.0f;
+    private int frameWidth;
+    private int frameHeight;
     // When loopStartMs >= 0 and loopEndMs == -1, the video will jump back to loopStartMs
     // once it reaches the end of the video.
     private long loopStartMs; // -1 means no specific loop points will be set
@@ -72,6 +102,8 @@ public class AlphaMovieView extends GLTextureView {
     // This should be populated with a MediaPlayer.SEEK_* constant
     // Only for API 26 and above
     private int loopSeekingMethod = 0; //numeros
+    // Whether the engine loops between the loop points by itself
+    private boolean engineLoops;
     private String shader; //letras y numeros
 
     private boolean autoPlayAfterResume;//si o no
@@ -80,32 +112,49 @@ public class AlphaMovieView extends GLTextureView {
     private PlayerState state = PlayerState.NOT_PREPARED;
 
     final Handler handler = new Handler();
-    final Runnable timeDetector = new Runnable() {
+    // Runs once per loop iteration, when playback reaches loopEndMs
+    final Runnable loopBoundary = new Runnable() {
         public void run() {
-            if (getRootView() == null) {
+            if (state != PlayerState.STARTED || !hasManualLoopEnd()) {
                 return;
             }
             try {
-                int currentTimeMs = mediaPlayer.getCurrentPosition();
-                if (state == PlayerState.STARTED) {
-                    startTimeDetector();
-                } else {
+                long remainingMs = loopEndMs - engine.getCurrentPosition();
+                if (remainingMs > 0) {
+                    // Playback fell behind the schedule, e.g. while buffering
+                    handler.postDelayed(this, remainingMs);
                     return;
                 }
-                if (loopStartMs >= 0 && loopEndMs >= 0 && currentTimeMs >= loopEndMs) {
-                    // Handle looping when both loop start and end points are defined
-                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-                        mediaPlayer.seekTo(loopStartMs, loopSeekingMethod);
-                    } else {
-                        mediaPlayer.seekTo((int) loopStartMs);
-                    }
-                }
-            } catch (Exception exception) {
-                Log.e("AlphaMovieView", "Time detector error. Did you forget to call AlphaMovieView's onPause in the containing fragment/activity? | " + exception.getMessage());
+                // The next boundary is scheduled once the seek completes
+                engine.seekTo(loopStartMs, loopSeekingMethod);
+            } catch (IllegalStateException exception) {
+                Log.e("AlphaMovieView", "Loop boundary error. Did you forget to call AlphaMovieView's onPause in the containing fragment/activity? | " + exception.getMessage());
             }
         }
     };
 
+    private final ViewTreeObserver.OnScrollChangedListener scrollChangedListener =
+            new ViewTreeObserver.OnScrollChangedListener() {
+                @Override
+                public void onScrollChanged() {
+                    DecoderBudget.invalidate();
+                }
+            };
+
+    private final Runnable latchFrame = new Runnable() {
+        @Override
+        public void run() {
+            renderer.latchFrame();
+        }
+    };
+
+    private final Runnable deferredRender = new Runnable() {
+        @Override
+        public void run() {
+            requestRender();
+        }
+    };
+
     public AlphaMovieView(Context context, AttributeSet attrs) {
         super(context, attrs);
 
@@ -117,8 +166,9 @@ public class AlphaMovieView extends GLTextureView {
     private void init(AttributeSet attrs) {
         setEGLContextClientVersion(GL_CONTEXT_VERSION);
         setEGLConfigChooser(8, 8, 8, 8, 16, 0);
+        ProgramBinaryCache.init(getContext());
 
-        initMediaPlayer();
+        initPlaybackEngine(createPlaybackEngine(attrs));
 
         renderer = new VideoRenderer();
 
@@ -126,36 +176,184 @@ public class AlphaMovieView extends GLTextureView {
 
         this.addOnSurfacePrepareListener();
         setRenderer(renderer);
+        // Only draw when the decoder delivers a frame, so a paused or ended video stays idle
+        setRenderMode(RENDERMODE_WHEN_DIRTY);
+        renderer.setOnFrameReadyListener(new VideoRenderer.OnFrameReadyListener() {
+            @Override
+            public void frameReady() {
+                requestRender();
+            }
+
+            @Override
+            public void frameSkipped(long drawDelayNs) {
+                queueEvent(latchFrame);
+                if (drawDelayNs >= 0) {
+                    postDelayed(deferredRender, TimeUnit.NANOSECONDS.toMillis(drawDelayNs));
+                }
+            }
+        });
 
         bringToFront();
         setPreserveEGLContextOnPause(true);
         setOpaque(false);
     }
 
-    private void initMediaPlayer() {
-        mediaPlayer = new MediaPlayer();
+    /**
+     * Compiles the built-in shader programs on the shared GL thread, creating the shared EGL
+     * context with the same configuration as the views, so the first view to mount does not
+     * have to wait for the driver. Queued once the stored program binaries have been read.
+     */
+    static void warmUpShaders(Context context) {
+        ProgramBinaryCache.init(context);
+        ProgramBinaryCache.runWhenLoaded(new Runnable() {
+            @Override
+            public void run() {
+                queueSharedGLEvent(new Runnable() {
+                    @Override
+                    public void run() {
+                        VideoRenderer.preloadShaders();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Runs the runnable on the shared GL thread, with the EGL context all views draw with.
+     */
+    static void queueSharedGLEvent(Runnable r) {
+        GLTextureView.queueSharedEvent(GL_CONTEXT_VERSION, 8, 8, 8, 8, 16, 0, r);
+    }
+
+    private PlaybackEngine createPlaybackEngine(AttributeSet attrs) {
+        TypedArray arr = getContext().obtainStyledAttributes(attrs, R.styleable.AlphaMovieView);
+        int type = arr.getInt(R.styleable.AlphaMovieView_playbackEngine, PLAYBACK_ENGINE_MEDIA_PLAYER);
+        arr.recycle();
+        return type == PLAYBACK_ENGINE_MEDIA_CODEC ? new MediaCodecEngine() : new MediaPlayerEngine();
+    }
+
+    private void initPlaybackEngine(PlaybackEngine playbackEngine) {
+        engine = playbackEngine;
         setScreenOnWhilePlaying(true);
         setLooping(true);
-        mediaPlayer.setOnCompletionListener(new MediaPlayer.OnCompletionListener() {
+        if (videoSurface != null) {
+            engine.setSurface(videoSurface);
+        }
+        engine.setListener(new PlaybackEngine.Listener() {
+            @Override
+            public void onPrepared(PlaybackEngine engine) {
+                state = PlayerState.PREPARED;
+                if (onAudioInfoListener != null) {
+                    onAudioInfoListener.onAudioInfo(engine.hasAudio());
+                }
+                Runnable action = onEnginePrepared;
+                onEnginePrepared = null;
+                if (action != null) {
+                    action.run();
+                }
+            }
+
             @Override
-            public void onCompletion(MediaPlayer mp) {
+            public void onCompletion(PlaybackEngine engine) {
                 if (onVideoEndedListener != null) {
                     onVideoEndedListener.onVideoEnded();
                 }
-                if (loopStartMs >= 0 && loopEndMs == -1) {
-                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-                        mediaPlayer.seekTo(loopStartMs, loopSeekingMethod);
-                    } else {
-                        mediaPlayer.seekTo((int) loopStartMs);
-                    }
-                    mediaPlayer.start();
+                if (loopStartMs >= 0 && loopEndMs == -1 && !engineLoops) {
+                    engine.seekTo(loopStartMs, loopSeekingMethod);
+                    engine.start();
                     return;
                 }
                 state = PlayerState.PAUSED;
+                handler.removeCallbacks(loopBoundary);
+            }
+
+            @Override
+            public void onSeekComplete(PlaybackEngine engine) {
+                if (state == PlayerState.STARTED) {
+                    scheduleLoopBoundary();
+                }
+                if (onSeekCompleteListener != null) {
+                    onSeekCompleteListener.onSeekComplete(getMediaPlayer());
+                }
+            }
+
+            @Override
+            public void onError(PlaybackEngine engine, int what, int extra) {
+                if (onErrorListener != null) {
+                    onErrorListener.onError(getMediaPlayer(), what, extra);
+                }
             }
         });
     }
 
+    /**
+     * Replaces the engine that decodes the video, e.g. with a {@link MediaCodecEngine} to
+     * decode the video track only. Must be called before a video is set; the previous engine
+     * is released.
+     */
+    public void setPlaybackEngine(PlaybackEngine playbackEngine) {
+        if (engine != null) {
+            engine.release();
+        }
+        state = PlayerState.NOT_PREPARED;
+        isDataSourceSet = false;
+        engineHasSource = false;
+        onEnginePrepared = null;
+        initPlaybackEngine(playbackEngine);
+        updateMediaPlayerLoopSetting();
+    }
+
+    /**
+     * Decodes the video track only, with a {@link MediaCodecEngine}, so that audio tracks are
+     * never demuxed or decoded and audio focus is never requested. Replaces the playback
+     * engine, so the video has to be set again afterwards.
+     */
+    public void setVideoOnly(boolean videoOnly) {
+        if (videoOnly != isVideoOnly()) {
+            setPlaybackEngine(videoOnly ? new MediaCodecEngine() : new MediaPlayerEngine());
+        }
+    }
+
+    public boolean isVideoOnly() {
+        return engine instanceof MediaCodecEngine;
+    }
+
+    /**
+     * Shares one decoder between all views that show the same video with this set, instead of
+     * decoding it in each of them. Shared videos loop without audio for as long as a view
+     * shows them, and the playback controls of the view do not apply to them. Only affects
+     * videos set afterwards, and sources that can be identified, i.e. not bare file
+     * descriptors.
+     */
+    public void setShareDecoder(boolean shareDecoder) {
+        this.shareDecoder = shareDecoder;
+    }
+
+    public boolean isShareDecoder() {
+        return shareDecoder;
+    }
+
+    // Closes the file of the source once background work using it finished; engines keep
+    // their own copy of it
+    private void releaseVideoSource() {
+        if (videoSource != null) {
+            videoSource.release();
+            videoSource = null;
+        }
+    }
+
+    private void releaseSharedStream() {
+        if (sharedStream != null) {
+            renderer.setSharedStream(null);
+            sharedStream.release(renderer);
+            sharedStream = null;
+        }
+    }
+
+    public PlaybackEngine getPlaybackEngine() {
+        return engine;
+    }
+
     private void obtainRendererOptions(AttributeSet attrs) {
         //if (attrs != null) {
             TypedArray arr = getContext().obtainStyledAttributes(attrs, R.styleable.AlphaMovieView);
@@ -163,6 +361,12 @@ public class AlphaMovieView extends GLTextureView {
             this.alphaColor = arr.getColor(R.styleable.AlphaMovieView_alphaColor, Color.argb(1,0,255,0));
             this.autoPlayAfterResume = arr.getBoolean(R.styleable.AlphaMovieView_autoPlayAfterResume, false);
             this.isPacked = arr.getBoolean(R.styleable.AlphaMovieView_packed, false);
+            this.packingLayout = PackingLayout.values()[arr.getInt(R.styleable.AlphaMovieView_packingLayout,
+                    PackingLayout.ALPHA_BOTTOM.ordinal())];
+            this.alphaScale = clampAlphaScale(arr.getFloat(R.styleable.AlphaMovieView_alphaScale, 1.0f));
+            setRenderScale(arr.getFloat(R.styleable.AlphaMovieView_renderScale, 1.0f));
+            setMaxRenderSize(arr.getDimensionPixelSize(R.styleable.AlphaMovieView_maxRenderSize, 0));
+            setMaxFps(arr.getInteger(R.styleable.AlphaMovieView_maxFps, 0));
             this.loopStartMs = arr.getInteger(R.styleable.AlphaMovieView_loopStartMs, -1);
             this.loopEndMs = arr.getInteger(R.styleable.AlphaMovieView_loopEndMs, -1);
             updateMediaPlayerLoopSetting();
@@ -172,6 +376,8 @@ public class AlphaMovieView extends GLTextureView {
                 this.loopSeekingMethod = 0;
             }
             this.shader = arr.getString(R.styleable.AlphaMovieView_shader);
+            setMaxFramesInFlight(arr.getInteger(R.styleable.AlphaMovieView_maxFramesInFlight,
+                    FramePacer.DEFAULT_MAX_FRAMES_IN_FLIGHT));
             arr.recycle();
             updateRendererOptions();
        // }
@@ -179,6 +385,7 @@ public class AlphaMovieView extends GLTextureView {
 
     private void updateRendererOptions() {
         renderer.setPacked(isPacked);
+        renderer.setPackingLayout(packingLayout, alphaScale);
         if (alphaColor != NOT_DEFINED_COLOR) {
             renderer.setAlphaColor(alphaColor);
         }
@@ -194,27 +401,100 @@ public class AlphaMovieView extends GLTextureView {
         if (renderer != null) {
             renderer.setOnSurfacePrepareListener(new VideoRenderer.OnSurfacePrepareListener() {
                 @Override
-                public void surfacePrepared(Surface surface) {
-                    isSurfaceCreated = true;
-                    mediaPlayer.setSurface(surface);
-                    surface.release();
-                    if (isDataSourceSet) {
-                        prepareAndStartMediaPlayer();
-                    }
+                public void surfacePrepared(final Surface surface) {
+                    // Called on the GL thread; the engine and the DecoderBudget are main thread only
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            onSurfacePrepared(surface);
+                        }
+                    });
                 }
             });
         }
     }
 
+    private void onSurfacePrepared(Surface surface) {
+        if (state == PlayerState.RELEASE) {
+            surface.release();
+            return;
+        }
+        isSurfaceCreated = true;
+        // Kept until replaced, as engines may only start using it once prepared
+        if (videoSurface != null) {
+            videoSurface.release();
+        }
+        videoSurface = surface;
+        engine.setSurface(surface);
+        if (isDataSourceSet) {
+            prepareAndStartMediaPlayer();
+        }
+    }
+
+    // Playback starts once the DecoderBudget grants this view a decoder
     private void prepareAndStartMediaPlayer() {
-        prepareAsync(new MediaPlayer.OnPreparedListener() {
+        if (sharedStream == null) {
+            DecoderBudget.request(this);
+        }
+    }
+
+    void onDecoderGranted() {
+        if (!isDataSourceSet || !isSurfaceCreated || engineHasSource || state == PlayerState.RELEASE) {
+            return;
+        }
+        try {
+            videoSource.applyTo(engine);
+            engineHasSource = true;
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage(), e);
+            return;
+        }
+        final boolean play = resumePlaying;
+        prepareAsync(new Runnable() {
             @Override
-            public void onPrepared(MediaPlayer mp) {
-                start();
+            public void run() {
+                // Read once prepared, as a segment may have been selected in the meantime
+                long positionMs = resumePositionMs;
+                boolean exact = resumeAtSegment;
+                resumePositionMs = 0;
+                resumeAtSegment = false;
+                if (exact) {
+                    // A sync frame before the segment start would flash the previous segment
+                    engine.seekTo(positionMs, MediaPlayer.SEEK_CLOSEST);
+                } else if (positionMs > 0) {
+                    engine.seekTo(positionMs, MediaPlayer.SEEK_PREVIOUS_SYNC);
+                }
+                if (play) {
+                    start();
+                }
             }
         });
     }
 
+    /**
+     * Gives up the decoder for a view that ranks higher. The last frame stays on screen until
+     * the decoder is granted again.
+     */
+    void onDecoderRevoked() {
+        if (!engineHasSource || state == PlayerState.RELEASE) {
+            return;
+        }
+        if (state == PlayerState.STARTED || state == PlayerState.PAUSED) {
+            resumePositionMs = engine.getCurrentPosition();
+            resumeAtSegment = false;
+        }
+        resumePlaying = state != PlayerState.PAUSED && state != PlayerState.STOPPED;
+        resetEngine();
+    }
+
+    private void resetEngine() {
+        handler.removeCallbacks(loopBoundary);
+        engine.reset();
+        engineHasSource = false;
+        onEnginePrepared = null;
+        state = PlayerState.NOT_PREPARED;
+    }
+
     private void calculateVideoAspectRatio(int videoWidth, int videoHeight) {
         if (videoWidth > 0 && videoHeight > 0) {
             videoAspectRatio = (float) videoWidth / videoHeight;
@@ -242,16 +522,12 @@ public class AlphaMovieView extends GLTextureView {
                 View.MeasureSpec.makeMeasureSpec(heightSize, heightMode));
     }
 
-    private void onDataSourceSet(MediaMetadataRetriever retriever) {
-        int videoWidth = Integer.parseInt(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH));
-        int videoHeight = Integer.parseInt(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_HEIGHT));
-        if (isPacked) {
-            // Packed videos are assumed to be contain the alpha channel on the right side of the
-            // original video, so the actual video width is half of the whole video
-            videoHeight /= 2.0f;
+    private void onDataSourceSet(MetadataCache.Metadata metadata) {
+        if (metadata != null) {
+            frameWidth = metadata.width;
+            frameHeight = metadata.height;
+            updateVideoAspectRatio();
         }
-
-        calculateVideoAspectRatio(videoWidth, videoHeight);
         isDataSourceSet = true;
 
         if (isSurfaceCreated) {
@@ -259,48 +535,261 @@ public class AlphaMovieView extends GLTextureView {
         }
     }
 
+    private void updateVideoAspectRatio() {
+        int videoWidth = frameWidth;
+        int videoHeight = frameHeight;
+        if (isPacked) {
+            // Only the color plane is shown, the rest of the frame holds the alpha plane
+            if (packingLayout.isVertical()) {
+                videoHeight = Math.round(videoHeight / (1 + alphaScale));
+            } else {
+                videoWidth = Math.round(videoWidth / (1 + alphaScale));
+            }
+        }
+        videoWidth /= atlasColumns;
+        videoHeight /= atlasRows;
+        calculateVideoAspectRatio(videoWidth, videoHeight);
+    }
+
     public void setAutoPlayAfterResume(boolean autoPlayAfterResume) {
         this.autoPlayAfterResume = autoPlayAfterResume;
     }
 
+    // Key color and accuracy are shader uniforms, so changing them never recompiles the shader
+    public void setAlphaColor(int alphaColor) {
+        this.alphaColor = alphaColor;
+        renderer.setAlphaColor(alphaColor);
+        requestRender();
+    }
+
+    public void setAccuracy(float accuracy) {
+        this.accuracy = accuracy;
+        renderer.setAccuracy(accuracy);
+        requestRender();
+    }
+
+    /**
+     * Sets how many frames the GPU may lag behind this view before rendering blocks. Lower
+     * values reduce latency, higher values absorb uneven GPU load. Defaults to 2.
+     */
+    public void setMaxFramesInFlight(int maxFramesInFlight) {
+        renderer.setMaxFramesInFlight(maxFramesInFlight);
+    }
+
+    /**
+     * Caps the frame rate at which this view draws, e.g. for decorative loops that do not need
+     * the full frame rate of the video. 0, the default, means no limit.
+     */
+    public void setMaxFps(int maxFps) {
+        renderer.setMaxFps(maxFps);
+    }
+
     public void setPacked(boolean isPacked) {
         this.isPacked = isPacked;
         renderer.setPacked(isPacked);
         updateRendererOptions();
         renderer.refreshShader();
+        updateVideoAspectRatio();
+        requestRender();
+    }
+
+    /**
+     * Sets where the alpha plane of a packed video sits relative to the color plane. Defaults
+     * to {@link PackingLayout#ALPHA_BOTTOM}.
+     */
+    public void setPackingLayout(PackingLayout packingLayout) {
+        this.packingLayout = packingLayout;
+        renderer.setPackingLayout(packingLayout, alphaScale);
+        updateVideoAspectRatio();
+        requestRender();
+    }
+
+    /**
+     * Sets the size of the alpha plane of a packed video relative to the color plane, e.g. 0.5
+     * when the alpha matte was encoded at half the width and height. Defaults to 1.
+     */
+    public void setAlphaScale(float alphaScale) {
+        this.alphaScale = clampAlphaScale(alphaScale);
+        renderer.setPackingLayout(packingLayout, this.alphaScale);
+        updateVideoAspectRatio();
+        requestRender();
+    }
+
+    /**
+     * Treats the video as a sprite atlas: a grid of independent animations, of which this view
+     * shows the cell set with {@link #setAtlasCell(int)}. Packed videos hold the grid in each
+     * plane. Views showing different cells of one atlas can share a single decoder, see
+     * {@link #setShareDecoder(boolean)}. Defaults to a single cell.
+     */
+    public void setAtlasGrid(int columns, int rows) {
+        atlasColumns = Math.max(1, columns);
+        atlasRows = Math.max(1, rows);
+        updateAtlasCell();
+        updateVideoAspectRatio();
+    }
+
+    public int getAtlasColumns() {
+        return atlasColumns;
+    }
+
+    public int getAtlasRows() {
+        return atlasRows;
+    }
+
+    /**
+     * Selects the cell of a sprite atlas to show, numbered row by row from the top left.
+     */
+    public void setAtlasCell(int cell) {
+        atlasCell = Math.max(0, cell);
+        updateAtlasCell();
+    }
+
+    private void updateAtlasCell() {
+        int cell = Math.min(atlasCell, atlasColumns * atlasRows - 1);
+        renderer.setAtlasCell(atlasColumns, atlasRows, cell);
+        requestRender();
+    }
+
+    private static float clampAlphaScale(float alphaScale) {
+        if (!(alphaScale > 0.0f)) {
+            return 1.0f;
+        }
+        return Math.min(alphaScale, 1.0f);
     }
 
     private void updateMediaPlayerLoopSetting() {
         if (loopStartMs >= 0 || loopEndMs >= 0) {
             // Disable MediaPlayer's built in looping if manual loop section is specified
-            setLooping(false);
+            engine.setLooping(false);
+        } else {
+            engine.setLooping(looping);
+        }
+        engineLoops = engine.setLoopRegion(loopStartMs, loopEndMs);
+        if (state == PlayerState.STARTED) {
+            scheduleLoopBoundary();
         }
     }
 
-    // Sets the start point of a loop. If >= 0, will override any setting set via mediaPlayer.setLooping
+    // Sets the start point of a loop. If >= 0, will override any setting set via setLooping
     public void setLoopStartMs(long startMs) {
         this.loopStartMs = startMs;
         updateMediaPlayerLoopSetting();
     }
 
-    // Sets the end point of a loop. If >= 0, will override any setting set via mediaPlayer.setLooping
+    // Sets the end point of a loop. If >= 0, will override any setting set via setLooping
     public void setLoopEndMs(long endMs) {
         this.loopEndMs = endMs;
         updateMediaPlayerLoopSetting();
     }
 
-    public void setVideoFromAssets(String assetsFileName) {
-        reset();
+    /**
+     * Sets the named segments of the video, e.g. the idle, hover and success states of a UI
+     * animation stored back to back in one file. Replaces the previous table; the current
+     * segment, if any, is applied again.
+     */
+    public void setSegments(Map<String, Segment> segments) {
+        this.segments.clear();
+        this.segments.putAll(segments);
+        if (segmentName != null) {
+            playSegment(segmentName);
+        }
+    }
 
-        try {
-            AssetFileDescriptor assetFileDescriptor = getContext().getAssets().openFd(assetsFileName);
-            mediaPlayer.setDataSource(assetFileDescriptor.getFileDescriptor(), assetFileDescriptor.getStartOffset(), assetFileDescriptor.getLength());
+    /**
+     * Loops the named segment. Switching segments seeks within the prepared video instead of
+     * opening it again. A name missing from the table is remembered until
+     * {@link #setSegments(Map)} defines it. Has no effect on shared decoders.
+     */
+    public void playSegment(String name) {
+        segmentName = name;
+        Segment segment = segments.get(name);
+        if (segment == null) {
+            Log.w(TAG, "Unknown segment " + name);
+            return;
+        }
+        loopStartMs = segment.startMs;
+        loopEndMs = segment.endMs;
+        updateMediaPlayerLoopSetting();
+        if (state == PlayerState.PREPARED || state == PlayerState.STARTED
+                || state == PlayerState.PAUSED) {
+            engine.seekTo(segment.startMs, MediaPlayer.SEEK_CLOSEST);
+        } else {
+            // Not prepared yet, or the decoder was revoked; applied once prepared
+            resumePositionMs = segment.startMs;
+            resumeAtSegment = true;
+        }
+    }
 
-            MediaMetadataRetriever retriever = new MediaMetadataRetriever();
-            retriever.setDataSource(assetFileDescriptor.getFileDescriptor(), assetFileDescriptor.getStartOffset(), assetFileDescriptor.getLength());
+    /**
+     * Stops looping a segment, and goes back to looping the whole video if looping is set.
+     */
+    public void clearSegment() {
+        if (segmentName == null) {
+            return;
+        }
+        segmentName = null;
+        loopStartMs = -1;
+        loopEndMs = -1;
+        resumeAtSegment = false;
+        updateMediaPlayerLoopSetting();
+    }
+
+    public String getSegment() {
+        return segmentName;
+    }
+
+    // Playback is prepared once the size of the video is known, which is instant for cached videos
+    private void setVideoSource(final VideoSource source) {
+        reset();
+        releaseSharedStream();
+        releaseVideoSource();
+        videoSource = source;
+        if (shareDecoder && source.key != null) {
+            sharedStream = SharedVideoStream.acquire(source, renderer);
+            renderer.setSharedStream(sharedStream);
+        }
+        isDataSourceSet = false;
+        Segment segment = segmentName != null ? segments.get(segmentName) : null;
+        resumePositionMs = segment != null ? segment.startMs : 0;
+        resumeAtSegment = segment != null;
+        resumePlaying = true;
+        // The first frame shows until the decoder delivers one, also while waiting for one
+        Bitmap poster = PosterCache.getCached(source);
+        renderer.setPoster(poster);
+        requestRender();
+        if (poster == null && source.key != null) {
+            PosterCache.get(getContext(), source, new PosterCache.Callback() {
+                @Override
+                public void onPoster(Bitmap poster) {
+                    if (poster != null && source == videoSource && state != PlayerState.RELEASE) {
+                        renderer.setPosterIfNoFrame(poster);
+                        requestRender();
+                    }
+                }
+            });
+        }
 
-            onDataSourceSet(retriever);
+        MetadataCache.get(getContext(), source, new MetadataCache.Callback() {
+            @Override
+            public void onMetadata(MetadataCache.Metadata metadata) {
+                if (source != videoSource || state == PlayerState.RELEASE) {
+                    // Replaced by another video in the meantime
+                    return;
+                }
+                if (metadata == null) {
+                    Log.w(TAG, "Unknown video size, keeping the current aspect ratio");
+                }
+                onDataSourceSet(metadata);
+            }
+        });
+    }
 
+    public void setVideoFromAssets(String assetsFileName) {
+        try {
+            AssetFileDescriptor assetFileDescriptor = getContext().getAssets().openFd(assetsFileName);
+            String key = "asset:" + assetsFileName + ':' + assetFileDescriptor.getStartOffset() + ':'
+                    + assetFileDescriptor.getLength();
+            setVideoSource(VideoSource.fromAssetFileDescriptor(key, assetFileDescriptor));
         } catch (IOException e) {
             Log.e(TAG, e.getMessage(), e);
         }
@@ -312,100 +801,31 @@ public class AlphaMovieView extends GLTextureView {
     }
 
     public void setVideoByUrl(String url) {
-        reset();
-
-        try {
-            mediaPlayer.setDataSource(url);
-
-            MediaMetadataRetriever retriever = new MediaMetadataRetriever();
-            retriever.setDataSource(url, new HashMap<String, String>());
-
-            onDataSourceSet(retriever);
-
-        } catch (IOException e) {
-            Log.e(TAG, e.getMessage(), e);
-        }
+        setVideoSource(VideoSource.fromUrl(url));
     }
 
   public void setVideoFromResourceId(Context context, int resId) {
-    reset();
-
-    try {
-      AssetFileDescriptor afd = context.getResources().openRawResourceFd(resId);
-      if (afd == null) return;
-
-      FileDescriptor fileDescriptor = afd.getFileDescriptor();
-      long startOffset = afd.getStartOffset();
-      long endOffset = afd.getLength();
-      mediaPlayer.setDataSource(fileDescriptor, startOffset, endOffset);
+    VideoSource source = VideoSource.fromRawResource(context, resId);
+    if (source == null) return;
 
-      MediaMetadataRetriever retriever = new MediaMetadataRetriever();
-      retriever.setDataSource(fileDescriptor, startOffset, endOffset);
-
-      onDataSourceSet(retriever);
-
-    } catch (IOException e) {
-      Log.e(TAG + " setVideoFromResourceId", e.getMessage(), e);
-    }
+    setVideoSource(source);
   }
 
     public void setVideoFromFile(FileDescriptor fileDescriptor) {
-        reset();
-
-        try {
-            mediaPlayer.setDataSource(fileDescriptor);
-
-            MediaMetadataRetriever retriever = new MediaMetadataRetriever();
-            retriever.setDataSource(fileDescriptor);
-
-            onDataSourceSet(retriever);
-
-        } catch (IOException e) {
-            Log.e(TAG, e.getMessage(), e);
-        }
+        setVideoSource(VideoSource.fromFileDescriptor(fileDescriptor));
     }
 
     public void setVideoFromFile(FileDescriptor fileDescriptor, int startOffset, int endOffset) {
-        reset();
-
-        try {
-            mediaPlayer.setDataSource(fileDescriptor, startOffset, endOffset);
-
-            MediaMetadataRetriever retriever = new MediaMetadataRetriever();
-            retriever.setDataSource(fileDescriptor, startOffset, endOffset);
-
-            onDataSourceSet(retriever);
-
-        } catch (IOException e) {
-            Log.e(TAG, e.getMessage(), e);
-        }
+        setVideoSource(VideoSource.fromFileDescriptor(fileDescriptor, startOffset, endOffset));
     }
 
     @TargetApi(23)
     public void setVideoFromMediaDataSource(MediaDataSource mediaDataSource) {
-        reset();
-
-        mediaPlayer.setDataSource(mediaDataSource);
-
-        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
-        retriever.setDataSource(mediaDataSource);
-
-        onDataSourceSet(retriever);
+        setVideoSource(VideoSource.fromMediaDataSource(mediaDataSource));
     }
 
     public void setVideoFromUri(Context context, Uri uri) {
-        reset();
-
-        try {
-            mediaPlayer.setDataSource(context, uri);
-
-            MediaMetadataRetriever retriever = new MediaMetadataRetriever();
-            retriever.setDataSource(context, uri);
-
-            onDataSourceSet(retriever);
-        } catch (IOException e) {
-            Log.e(TAG, e.getMessage(), e);
-        }
+        setVideoSource(VideoSource.fromUri(context, uri));
     }
 
     @Override
@@ -420,61 +840,81 @@ public class AlphaMovieView extends GLTextureView {
     @Override
     public void onPause() {
         super.onPause();
-        handler.removeCallbacks(timeDetector);
+        handler.removeCallbacks(loopBoundary);
         if (isPlaying() && autoPlayAfterResume) {
             playAfterResume = true;
         }
         pause();
     }
 
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        getViewTreeObserver().addOnScrollChangedListener(scrollChangedListener);
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        DecoderBudget.invalidate();
+    }
+
     @Override
     protected void onDetachedFromWindow() {
         super.onDetachedFromWindow();
+        getViewTreeObserver().removeOnScrollChangedListener(scrollChangedListener);
         release();
-      handler.removeCallbacks(timeDetector);
+      handler.removeCallbacks(loopBoundary);
       TransparentVideoViewManager.destroyView((LinearLayout)this.getParent());
     }
 
-    private void prepareAsync(final MediaPlayer.OnPreparedListener onPreparedListener) {
-        if (mediaPlayer != null && state == PlayerState.NOT_PREPARED
+    private void prepareAsync(Runnable onPrepared) {
+        if (engine != null && state == PlayerState.NOT_PREPARED
                 || state == PlayerState.STOPPED) {
-            mediaPlayer.setOnPreparedListener(new MediaPlayer.OnPreparedListener() {
-                @Override
-                public void onPrepared(MediaPlayer mp) {
-                    state = PlayerState.PREPARED;
-                    onPreparedListener.onPrepared(mp);
-                }
-            });
-            mediaPlayer.prepareAsync();
+            onEnginePrepared = onPrepared;
+            engine.prepareAsync();
         }
     }
 
-    private void startTimeDetector() {
-        handler.postDelayed(timeDetector, TIME_DETECTION_INTERVAL_MS);
+    // Loop ends the engine does not handle itself are reached by seeking back
+    private boolean hasManualLoopEnd() {
+        return !engineLoops && loopStartMs >= 0 && loopEndMs >= 0;
+    }
+
+    /**
+     * Schedules a single wakeup for when playback reaches loopEndMs, instead of polling the
+     * position. Must be called whenever playback starts or the position jumps.
+     */
+    private void scheduleLoopBoundary() {
+        handler.removeCallbacks(loopBoundary);
+        if (hasManualLoopEnd()) {
+            long remainingMs = loopEndMs - engine.getCurrentPosition();
+            handler.postDelayed(loopBoundary, Math.max(0, remainingMs));
+        }
     }
 
     public void start() {
-        if (mediaPlayer != null) {
+        if (engine != null) {
             switch (state) {
                 case PREPARED:
-                    mediaPlayer.start();
-                    startTimeDetector();
+                    engine.start();
+                    scheduleLoopBoundary();
                     state = PlayerState.STARTED;
                     if (onVideoStartedListener != null) {
                         onVideoStartedListener.onVideoStarted();
                     }
                     break;
                 case PAUSED:
-                    mediaPlayer.start();
-                    startTimeDetector();
+                    engine.start();
+                    scheduleLoopBoundary();
                     state = PlayerState.STARTED;
                     break;
                 case STOPPED:
-                    prepareAsync(new MediaPlayer.OnPreparedListener() {
+                    prepareAsync(new Runnable() {
                         @Override
-                        public void onPrepared(MediaPlayer mp) {
-                            mediaPlayer.start();
-                            startTimeDetector();
+                        public void run() {
+                            engine.start();
+                            scheduleLoopBoundary();
                             state = PlayerState.STARTED;
                             if (onVideoStartedListener != null) {
                                 onVideoStartedListener.onVideoStarted();
@@ -487,32 +927,39 @@ public class AlphaMovieView extends GLTextureView {
     }
 
     public void pause() {
-        if (mediaPlayer != null && state == PlayerState.STARTED) {
-            mediaPlayer.pause();
+        if (engine != null && state == PlayerState.STARTED) {
+            engine.pause();
             state = PlayerState.PAUSED;
+            handler.removeCallbacks(loopBoundary);
         }
     }
 
     public void stop() {
-        if (mediaPlayer != null && (state == PlayerState.STARTED || state == PlayerState.PAUSED)) {
-            mediaPlayer.stop();
+        if (engine != null && (state == PlayerState.STARTED || state == PlayerState.PAUSED)) {
+            engine.stop();
             state = PlayerState.STOPPED;
+            handler.removeCallbacks(loopBoundary);
         }
     }
 
     public void reset() {
-        if (mediaPlayer != null && (state == PlayerState.STARTED || state == PlayerState.PAUSED ||
-                state == PlayerState.STOPPED)) {
-            mediaPlayer.reset();
-            state = PlayerState.NOT_PREPARED;
+        if (engine != null && engineHasSource && state != PlayerState.RELEASE) {
+            resetEngine();
         }
     }
 
     public void release() {
-        if (mediaPlayer != null) {
-            mediaPlayer.release();
+        DecoderBudget.cancel(this);
+        releaseSharedStream();
+        if (engine != null) {
+            engine.release();
             state = PlayerState.RELEASE;
         }
+        releaseVideoSource();
+        if (videoSurface != null) {
+            videoSurface.release();
+            videoSurface = null;
+        }
     }
 
     public PlayerState getState() {
@@ -536,23 +983,27 @@ public class AlphaMovieView extends GLTextureView {
     }
 
     public void seekTo(int msec) {
-        mediaPlayer.seekTo(msec);
+        engine.seekTo(msec, MediaPlayer.SEEK_PREVIOUS_SYNC);
     }
 
     public void setLooping(boolean looping) {
-        mediaPlayer.setLooping(looping);
+        this.looping = looping;
+        engine.setLooping(looping);
     }
 
     public int getCurrentPosition() {
-        return mediaPlayer.getCurrentPosition();
+        return (int) engine.getCurrentPosition();
     }
 
     public void setScreenOnWhilePlaying(boolean screenOn) {
-        mediaPlayer.setScreenOnWhilePlaying(screenOn);
+        if (engine instanceof MediaPlayerEngine) {
+            ((MediaPlayerEngine) engine).setScreenOnWhilePlaying(screenOn);
+        }
     }
 
+    // The MediaPlayer passed to the listener is null unless the MediaPlayerEngine is in use
     public void setOnErrorListener(MediaPlayer.OnErrorListener onErrorListener){
-        mediaPlayer.setOnErrorListener(onErrorListener);
+        this.onErrorListener = onErrorListener;
     }
 
     public void setOnVideoStartedListener(OnVideoStartedListener onVideoStartedListener) {
@@ -564,7 +1015,12 @@ public class AlphaMovieView extends GLTextureView {
     }
 
     public void setOnSeekCompleteListener(MediaPlayer.OnSeekCompleteListener onSeekCompleteListener) {
-        mediaPlayer.setOnSeekCompleteListener(onSeekCompleteListener);
+        this.onSeekCompleteListener = onSeekCompleteListener;
+    }
+
+    // Called each time a video was prepared
+    public void setOnAudioInfoListener(OnAudioInfoListener onAudioInfoListener) {
+        this.onAudioInfoListener = onAudioInfoListener;
     }
 
     public void setLoopSeekingMethod(int loopSeekingMethod) {
@@ -575,8 +1031,11 @@ public class AlphaMovieView extends GLTextureView {
         return this.loopSeekingMethod;
     }
 
+    /**
+     * @return the underlying MediaPlayer, or null if another {@link PlaybackEngine} is in use.
+     */
     public MediaPlayer getMediaPlayer() {
-        return mediaPlayer;
+        return engine instanceof MediaPlayerEngine ? ((MediaPlayerEngine) engine).getMediaPlayer() : null;
     }
 
     public interface OnVideoStartedListener {
@@ -587,6 +1046,69 @@ public class AlphaMovieView extends GLTextureView {
         void onVideoEnded();
     }
 
+    public interface OnAudioInfoListener {
+        void onAudioInfo(boolean hasAudio);
+    }
+
+    /**
+     * Position of the alpha plane in the frames of a packed video. A reduced resolution alpha
+     * plane is anchored at the top-left corner of its side of the frame.
+     */
+    public enum PackingLayout {
+        ALPHA_BOTTOM, ALPHA_TOP, ALPHA_RIGHT, ALPHA_LEFT;
+
+        boolean isVertical() {
+            return this == ALPHA_BOTTOM || this == ALPHA_TOP;
+        }
+
+        /**
+         * Computes the color and alpha planes as (x, y, width, height) in frame UV space, with
+         * the origin at the bottom left of the frame.
+         */
+        void computeRects(float alphaScale, float[] colorRect, float[] alphaRect) {
+            float color = 1 / (1 + alphaScale);
+            float alpha = alphaScale / (1 + alphaScale);
+            switch (this) {
+                case ALPHA_BOTTOM:
+                    setRect(colorRect, 0, alpha, 1, color);
+                    setRect(alphaRect, 0, 0, alphaScale, alpha);
+                    break;
+                case ALPHA_TOP:
+                    setRect(colorRect, 0, 0, 1, color);
+                    setRect(alphaRect, 0, color, alphaScale, alpha);
+                    break;
+                case ALPHA_RIGHT:
+                    setRect(colorRect, 0, 0, color, 1);
+                    setRect(alphaRect, color, 1 - alphaScale, alpha, alphaScale);
+                    break;
+                case ALPHA_LEFT:
+                    setRect(colorRect, alpha, 0, color, 1);
+                    setRect(alphaRect, 0, 1 - alphaScale, alpha, alphaScale);
+                    break;
+            }
+        }
+
+        private static void setRect(float[] rect, float x, float y, float width, float height) {
+            rect[0] = x;
+            rect[1] = y;
+            rect[2] = width;
+            rect[3] = height;
+        }
+    }
+
+    /**
+     * A named time range of a video, see {@link #setSegments(Map)}.
+     */
+    public static final class Segment {
+        final long startMs;
+        final long endMs;
+
+        public Segment(long startMs, long endMs) {
+            this.startMs = startMs;
+            this.endMs = endMs;
+        }
+    }
+
     private enum PlayerState {
         NOT_PREPARED, PREPARED, STARTED, PAUSED, STOPPED, RELEASE
     }
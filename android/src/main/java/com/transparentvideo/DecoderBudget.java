@@ -0,0 +1,151 @@
+package com.transparentvideo;
+
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Caps how many {@link AlphaMovieView}s decode at the same time. Devices only support a few
+ * concurrent hardware decoder instances; beyond that, preparing a player fails or falls back
+ * to slow software decoders.
+ * <p>
+ * Views that want to decode are ranked by their visible area on screen. The largest ones are
+ * granted a decoder, the others are held back, showing their last frame or else the poster of
+ * their video, until they rank high enough. Rankings are updated as views scroll. Main thread only.
+ */
+final class DecoderBudget {
+    static final int DEFAULT_MAX_ACTIVE_DECODERS = 4;
+
+    private static final List<AlphaMovieView> candidates = new ArrayList<>();
+    private static final List<AlphaMovieView> active = new ArrayList<>();
+    private static final Map<AlphaMovieView, Integer> areas = new HashMap<>();
+    private static final Rect visibleRect = new Rect();
+    private static final Handler handler = new Handler(Looper.getMainLooper());
+    private static int maxActive = DEFAULT_MAX_ACTIVE_DECODERS;
+
+    private DecoderBudget() {
+    }
+
+    static void setMaxActiveDecoders(int maxActiveDecoders) {
+        maxActive = Math.max(1, maxActiveDecoders);
+        DecoderPool.setMaxDecoders(maxActive);
+        update();
+    }
+
+    /**
+     * Asks for a decoder. {@link AlphaMovieView#onDecoderGranted()} is called right away if
+     * the view may decode, otherwise once it ranks high enough.
+     */
+    static void request(AlphaMovieView view) {
+        if (!candidates.contains(view)) {
+            candidates.add(view);
+        }
+        if (active.contains(view)) {
+            view.onDecoderGranted();
+        } else {
+            update();
+        }
+    }
+
+    /**
+     * Withdraws a view, e.g. when it is detached. Its decoder, if it had one, is handed to the
+     * next view in line.
+     */
+    static void cancel(AlphaMovieView view) {
+        candidates.remove(view);
+        if (active.remove(view)) {
+            // The freed slot goes to the next view in line even if all remaining views fit
+            // into the budget now
+            handler.removeCallbacks(updateRunnable);
+            handler.post(updateRunnable);
+        }
+    }
+
+    /**
+     * Re-ranks the views on the next frame, e.g. after they scrolled or were laid out. Does
+     * nothing unless more views want to decode than the budget allows.
+     */
+    static void invalidate() {
+        if (candidates.size() > maxActive) {
+            handler.removeCallbacks(updateRunnable);
+            handler.post(updateRunnable);
+        }
+    }
+
+    private static final Runnable updateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            update();
+        }
+    };
+
+    private static void update() {
+        handler.removeCallbacks(updateRunnable);
+        areas.clear();
+        for (AlphaMovieView view : candidates) {
+            boolean visible = view.isShown() && view.getGlobalVisibleRect(visibleRect);
+            areas.put(view, visible ? visibleRect.width() * visibleRect.height() : 0);
+        }
+        List<AlphaMovieView> granted = select(candidates, areas, active, maxActive);
+
+        // Revoke first, so the decoders are back in the pool for the views granted next. The
+        // pool keeps them, as they still count against the budget while they are idle.
+        for (AlphaMovieView view : revoked(active, granted)) {
+            active.remove(view);
+            view.onDecoderRevoked();
+        }
+        for (AlphaMovieView view : newlyGranted(active, granted)) {
+            active.add(view);
+            view.onDecoderGranted();
+        }
+    }
+
+    /**
+     * Ranks the candidates by visible area and returns the ones that may decode, largest
+     * first. On a tie the ones that already decode keep their decoder.
+     */
+    static <T> List<T> select(List<T> candidates, final Map<T, Integer> areas, final List<T> active,
+                              int maxActive) {
+        List<T> ranked = new ArrayList<>(candidates);
+        Collections.sort(ranked, new Comparator<T>() {
+            @Override
+            public int compare(T a, T b) {
+                int byArea = Integer.compare(areas.get(b), areas.get(a));
+                if (byArea != 0) {
+                    return byArea;
+                }
+                return Boolean.compare(active.contains(b), active.contains(a));
+            }
+        });
+        return new ArrayList<>(ranked.subList(0, Math.min(maxActive, ranked.size())));
+    }
+
+    // The active ones that lost their decoder, in the order they were granted
+    static <T> List<T> revoked(List<T> active, List<T> granted) {
+        List<T> revoked = new ArrayList<>();
+        for (T item : active) {
+            if (!granted.contains(item)) {
+                revoked.add(item);
+            }
+        }
+        return revoked;
+    }
+
+    // The granted ones that do not decode yet, largest first
+    static <T> List<T> newlyGranted(List<T> active, List<T> granted) {
+        List<T> added = new ArrayList<>();
+        for (T item : granted) {
+            if (!active.contains(item)) {
+                added.add(item);
+            }
+        }
+        return added;
+    }
+}
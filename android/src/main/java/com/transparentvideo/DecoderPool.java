@@ -0,0 +1,219 @@
+package com.transparentvideo;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Process-wide pool of idle video decoders, so that a view mounted while scrolling reuses the
+ * decoder of a view that was just detached instead of allocating a new codec.
+ * <p>
+ * Decoders are pooled stopped, by mime type and the maximum frame size they are configured
+ * for, and reused for any video of the same type that fits. Idle decoders still hold hardware
+ * resources, so only a few are kept, only for {@link #IDLE_TIMEOUT_MS}, and only as long as
+ * decoders in use and idle ones together stay within the {@link DecoderBudget}. A decoder
+ * handed back by a revoked view thus stays pooled for the view granted in its place.
+ */
+final class DecoderPool {
+    private static final String TAG = "DecoderPool";
+
+    private static final int MAX_IDLE = 4;
+    private static final long IDLE_TIMEOUT_MS = 10_000;
+    // Frame sizes are rounded up to this, so that videos of similar sizes share decoders
+    private static final int SIZE_ALIGNMENT = 256;
+
+    private static final List<Decoder> idle = new ArrayList<>();
+    private static int maxDecoders = DecoderBudget.DEFAULT_MAX_ACTIVE_DECODERS;
+    // Decoders acquired and not yet recycled or discarded
+    private static int inUse;
+    private static Handler handler;
+
+    private DecoderPool() {
+    }
+
+    /**
+     * Returns a stopped decoder for videos of the given type and size, reusing an idle one if
+     * possible.
+     */
+    static Decoder acquire(String mime, int width, int height) throws IOException {
+        synchronized (DecoderPool.class) {
+            Decoder best = null;
+            for (Decoder decoder : idle) {
+                if (decoder.fits(mime, width, height)
+                        && (best == null || decoder.area() < best.area())) {
+                    best = decoder;
+                }
+            }
+            if (best != null) {
+                idle.remove(best);
+                inUse++;
+                return best;
+            }
+        }
+        MediaCodec codec = MediaCodec.createDecoderByType(mime);
+        synchronized (DecoderPool.class) {
+            inUse++;
+        }
+        int maxWidth = align(width);
+        int maxHeight = align(height);
+        try {
+            // The aligned size may exceed what the codec supports, e.g. 1080x1920 -> 1280x2048
+            MediaCodecInfo.VideoCapabilities capabilities =
+                    codec.getCodecInfo().getCapabilitiesForType(mime).getVideoCapabilities();
+            maxWidth = Math.max(width, Math.min(maxWidth, capabilities.getSupportedWidths().getUpper()));
+            maxHeight = Math.max(height, Math.min(maxHeight, capabilities.getSupportedHeights().getUpper()));
+            if (!capabilities.isSizeSupported(maxWidth, maxHeight)) {
+                maxWidth = width;
+                maxHeight = height;
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Unknown decoder capabilities: " + e.getMessage());
+            maxWidth = width;
+            maxHeight = height;
+        }
+        return new Decoder(codec, mime, maxWidth, maxHeight);
+    }
+
+    /**
+     * Returns a decoder to the pool. The decoder must be stopped.
+     */
+    static void recycle(Decoder decoder) {
+        List<Decoder> evicted;
+        synchronized (DecoderPool.class) {
+            inUse--;
+            decoder.idleSinceMs = SystemClock.uptimeMillis();
+            idle.add(decoder);
+            evicted = evictLocked();
+            scheduleTrim();
+        }
+        for (Decoder evictedDecoder : evicted) {
+            evictedDecoder.codec.release();
+        }
+    }
+
+    /**
+     * Releases a decoder that cannot be reused, e.g. because it failed.
+     */
+    static void discard(Decoder decoder) {
+        synchronized (DecoderPool.class) {
+            inUse--;
+        }
+        decoder.codec.release();
+    }
+
+    /**
+     * Sets how many decoders may exist at the same time, in use or idle, so that idle decoders
+     * never push the device over its limit of concurrent codecs. Idle decoders beyond the
+     * limit are released in the background.
+     */
+    static void setMaxDecoders(int max) {
+        final List<Decoder> evicted;
+        synchronized (DecoderPool.class) {
+            maxDecoders = max;
+            evicted = evictLocked();
+            if (evicted.isEmpty()) {
+                return;
+            }
+            scheduleTrim();
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (Decoder decoder : evicted) {
+                    decoder.codec.release();
+                }
+            }
+        });
+    }
+
+    // Oldest first
+    private static List<Decoder> evictLocked() {
+        int limit = Math.max(0, Math.min(MAX_IDLE, maxDecoders - inUse));
+        List<Decoder> evicted = new ArrayList<>();
+        while (idle.size() > limit) {
+            evicted.add(idle.remove(0));
+        }
+        return evicted;
+    }
+
+    private static int align(int size) {
+        return (size + SIZE_ALIGNMENT - 1) / SIZE_ALIGNMENT * SIZE_ALIGNMENT;
+    }
+
+    private static void scheduleTrim() {
+        if (handler == null) {
+            HandlerThread thread = new HandlerThread("TransparentVideoDecoderPool");
+            thread.start();
+            handler = new Handler(thread.getLooper());
+        }
+        handler.removeCallbacks(trim);
+        handler.postDelayed(trim, IDLE_TIMEOUT_MS);
+    }
+
+    private static final Runnable trim = new Runnable() {
+        @Override
+        public void run() {
+            List<Decoder> expired = new ArrayList<>();
+            synchronized (DecoderPool.class) {
+                long now = SystemClock.uptimeMillis();
+                Iterator<Decoder> it = idle.iterator();
+                while (it.hasNext()) {
+                    Decoder decoder = it.next();
+                    if (now - decoder.idleSinceMs >= IDLE_TIMEOUT_MS) {
+                        expired.add(decoder);
+                        it.remove();
+                    }
+                }
+                if (!idle.isEmpty()) {
+                    scheduleTrim();
+                }
+            }
+            for (Decoder decoder : expired) {
+                decoder.codec.release();
+            }
+        }
+    };
+
+    static final class Decoder {
+        final MediaCodec codec;
+        final String mime;
+        final int maxWidth;
+        final int maxHeight;
+        long idleSinceMs;
+
+        Decoder(MediaCodec codec, String mime, int maxWidth, int maxHeight) {
+            this.codec = codec;
+            this.mime = mime;
+            this.maxWidth = maxWidth;
+            this.maxHeight = maxHeight;
+        }
+
+        /**
+         * Configures the decoder for the given format, keeping its buffers large enough for
+         * any video it may be reused for.
+         */
+        void configure(MediaFormat format, Surface surface) {
+            format.setInteger(MediaFormat.KEY_MAX_WIDTH, maxWidth);
+            format.setInteger(MediaFormat.KEY_MAX_HEIGHT, maxHeight);
+            codec.configure(format, surface, null, 0);
+        }
+
+        boolean fits(String mime, int width, int height) {
+            return this.mime.equals(mime) && maxWidth >= width && maxHeight >= height;
+        }
+
+        int area() {
+            return maxWidth * maxHeight;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.transparentvideo;
+
+import android.opengl.GLES30;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+
+/**
+ * Limits how many frames of one view the GPU may lag behind, using a fence sync per frame.
+ * <p>
+ * Unlike glFinish, this lets the CPU prepare the next frame while the GPU is still drawing the
+ * previous ones, and only blocks once {@code maxFramesInFlight} frames are queued. Fence syncs
+ * need an ES 3.0 context; on ES 2.0 drivers pacing is left to eglSwapBuffers. Must be used on
+ * the shared GL thread.
+ */
+final class FramePacer {
+    private static final String TAG = "FramePacer";
+
+    static final int DEFAULT_MAX_FRAMES_IN_FLIGHT = 2;
+
+    // Never stall the shared thread, and every other view, on a single wedged frame
+    private static final long MAX_WAIT_NS = 100_000_000L;
+
+    private final ArrayDeque<Long> fences = new ArrayDeque<>();
+    private volatile int maxFramesInFlight = DEFAULT_MAX_FRAMES_IN_FLIGHT;
+
+    void setMaxFramesInFlight(int maxFramesInFlight) {
+        this.maxFramesInFlight = Math.max(1, maxFramesInFlight);
+    }
+
+    int getMaxFramesInFlight() {
+        return maxFramesInFlight;
+    }
+
+    /**
+     * Blocks until fewer than {@code maxFramesInFlight} frames are pending on the GPU.
+     */
+    void waitForFrameSlot() {
+        int max = maxFramesInFlight;
+        while (!fences.isEmpty()) {
+            boolean mustWait = fences.size() >= max;
+            int result = GLES30.glClientWaitSync(fences.peekFirst(), GLES30.GL_SYNC_FLUSH_COMMANDS_BIT,
+                    mustWait ? MAX_WAIT_NS : 0);
+            if (result == GLES30.GL_TIMEOUT_EXPIRED) {
+                if (!mustWait) {
+                    break;
+                }
+                Log.w(TAG, "GPU did not finish a frame within " + MAX_WAIT_NS / 1_000_000 + " ms");
+            }
+            GLES30.glDeleteSync(fences.pollFirst());
+        }
+    }
+
+    /**
+     * Marks the end of the commands of a frame.
+     */
+    void frameSubmitted() {
+        if (!GLInfo.isGles3()) {
+            return;
+        }
+        long fence = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        if (fence != 0) {
+            fences.addLast(fence);
+        }
+    }
+
+    /**
+     * Deletes all pending fences. Pass false if the context they belong to is already gone.
+     */
+    void release(boolean contextAlive) {
+        if (contextAlive) {
+            for (long fence : fences) {
+                GLES30.glDeleteSync(fence);
+            }
+        }
+        fences.clear();
+    }
+}
@@ -0,0 +1,40 @@
+package com.transparentvideo;
+
+import android.opengl.GLES20;
+
+/**
+ * Driver capabilities of the shared EGL context. The views request an ES 2.0 context, but most
+ * drivers hand out the highest compatible version, so ES 3.0 entry points such as program
+ * binaries and fence syncs are used whenever the context reports them.
+ * <p>
+ * Must be called on the shared GL thread with the context current.
+ */
+final class GLInfo {
+    private static Boolean gles3;
+    private static String driverKey;
+
+    private GLInfo() {
+    }
+
+    static synchronized boolean isGles3() {
+        if (gles3 == null) {
+            // "OpenGL ES <major>.<minor> <vendor-specific information>"
+            String version = GLES20.glGetString(GLES20.GL_VERSION);
+            gles3 = version != null && version.startsWith("OpenGL ES ")
+                    && version.length() > 10 && Character.isDigit(version.charAt(10))
+                    && version.charAt(10) >= '3';
+        }
+        return gles3;
+    }
+
+    /**
+     * Identifies the driver build, for data that is only valid for the driver that produced it.
+     */
+    static synchronized String getDriverKey() {
+        if (driverKey == null) {
+            driverKey = GLES20.glGetString(GLES20.GL_RENDERER) + '\0'
+                    + GLES20.glGetString(GLES20.GL_VERSION);
+        }
+        return driverKey;
+    }
+}
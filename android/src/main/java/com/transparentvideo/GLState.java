@@ -0,0 +1,193 @@
+package com.transparentvideo;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import javax.microedition.khronos.egl.EGL10;
+import javax.microedition.khronos.egl.EGLContext;
+
+/**
+ * Shadow copy of the GL state used by the renderers, so that only calls which actually change
+ * something reach the driver.
+ * <p>
+ * All views draw with the one shared EGL context, so the state is tracked process-wide. Any
+ * binding made behind the tracker's back must be reported, and deleted objects must go through
+ * the delete methods so that a recycled name is not mistaken for a bound one. All methods must
+ * be called on the shared GL thread.
+ */
+final class GLState {
+    static final int GL_TEXTURE_EXTERNAL_OES = 0x8D65;
+
+    private static final int MAX_TRACKED_ATTRIBS = 16;
+
+    private static EGLContext context;
+    private static int generation;
+
+    private static int program;
+    private static int externalTexture;
+    private static int arrayBuffer;
+    private static int vertexArray;
+    private static boolean blend;
+    private static int blendSrc;
+    private static int blendDst;
+    private static final int[] viewport = new int[4];
+    private static final float[] clearColor = new float[4];
+    // Attribute state of the default vertex array only; a VAO carries its own
+    private static int enabledAttribs;
+    private static final int[] attribBuffers = new int[MAX_TRACKED_ATTRIBS];
+    private static final int[] attribSizes = new int[MAX_TRACKED_ATTRIBS];
+    private static final int[] attribStrides = new int[MAX_TRACKED_ATTRIBS];
+    private static final int[] attribOffsets = new int[MAX_TRACKED_ATTRIBS];
+
+    private GLState() {
+    }
+
+    /**
+     * Forgets all tracked state if the current context is not the one it was tracked for.
+     *
+     * @return a number that changes whenever the context changed, to invalidate objects that
+     * were created in an earlier context.
+     */
+    static int checkContext() {
+        EGLContext current = ((EGL10) EGLContext.getEGL()).eglGetCurrentContext();
+        if (current != null && !current.equals(context)) {
+            context = current;
+            generation++;
+            reset();
+        }
+        return generation;
+    }
+
+    private static void reset() {
+        // Values a fresh context starts with; blending funcs and viewport are never relied on
+        program = 0;
+        externalTexture = 0;
+        arrayBuffer = 0;
+        vertexArray = 0;
+        blend = false;
+        blendSrc = -1;
+        blendDst = -1;
+        viewport[2] = -1;
+        clearColor[0] = clearColor[1] = clearColor[2] = clearColor[3] = 0;
+        enabledAttribs = 0;
+        for (int i = 0; i < MAX_TRACKED_ATTRIBS; i++) {
+            attribBuffers[i] = -1;
+        }
+    }
+
+    static void useProgram(int program) {
+        if (GLState.program != program) {
+            GLState.program = program;
+            GLES20.glUseProgram(program);
+        }
+    }
+
+    static void deleteProgram(int program) {
+        if (GLState.program == program) {
+            GLState.program = 0;
+            GLES20.glUseProgram(0);
+        }
+        GLES20.glDeleteProgram(program);
+    }
+
+    /**
+     * Binds an external texture to texture unit 0, the only unit the renderers use.
+     */
+    static void bindExternalTexture(int texture) {
+        if (externalTexture != texture) {
+            externalTexture = texture;
+            GLES20.glBindTexture(GL_TEXTURE_EXTERNAL_OES, texture);
+        }
+    }
+
+    /**
+     * Records a binding made outside the tracker, e.g. by {@code SurfaceTexture.updateTexImage}.
+     */
+    static void externalTextureBound(int texture) {
+        externalTexture = texture;
+    }
+
+    static void deleteTexture(int texture) {
+        if (externalTexture == texture) {
+            externalTexture = 0;
+        }
+        GLES20.glDeleteTextures(1, new int[]{texture}, 0);
+    }
+
+    static void bindArrayBuffer(int buffer) {
+        if (arrayBuffer != buffer) {
+            arrayBuffer = buffer;
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, buffer);
+        }
+    }
+
+    static void bindVertexArray(int array) {
+        if (vertexArray != array) {
+            vertexArray = array;
+            GLES30.glBindVertexArray(array);
+        }
+    }
+
+    static void deleteVertexArray(int array) {
+        if (vertexArray == array) {
+            bindVertexArray(0);
+        }
+        GLES30.glDeleteVertexArrays(1, new int[]{array}, 0);
+    }
+
+    /**
+     * Points a float attribute at the bound array buffer and enables it.
+     */
+    static void vertexAttribPointer(int index, int size, int stride, int offset) {
+        boolean tracked = vertexArray == 0 && index < MAX_TRACKED_ATTRIBS;
+        if (!tracked || attribBuffers[index] != arrayBuffer || attribSizes[index] != size
+                || attribStrides[index] != stride || attribOffsets[index] != offset) {
+            GLES20.glVertexAttribPointer(index, size, GLES20.GL_FLOAT, false, stride, offset);
+            if (tracked) {
+                attribBuffers[index] = arrayBuffer;
+                attribSizes[index] = size;
+                attribStrides[index] = stride;
+                attribOffsets[index] = offset;
+            }
+        }
+        if (!tracked || (enabledAttribs & (1 << index)) == 0) {
+            GLES20.glEnableVertexAttribArray(index);
+            if (tracked) {
+                enabledAttribs |= 1 << index;
+            }
+        }
+    }
+
+    static void enableBlend(int src, int dst) {
+        if (!blend) {
+            blend = true;
+            GLES20.glEnable(GLES20.GL_BLEND);
+        }
+        if (blendSrc != src || blendDst != dst) {
+            blendSrc = src;
+            blendDst = dst;
+            GLES20.glBlendFunc(src, dst);
+        }
+    }
+
+    static void viewport(int x, int y, int width, int height) {
+        if (viewport[0] != x || viewport[1] != y || viewport[2] != width || viewport[3] != height) {
+            viewport[0] = x;
+            viewport[1] = y;
+            viewport[2] = width;
+            viewport[3] = height;
+            GLES20.glViewport(x, y, width, height);
+        }
+    }
+
+    static void clearColor(float red, float green, float blue, float alpha) {
+        if (clearColor[0] != red || clearColor[1] != green || clearColor[2] != blue
+                || clearColor[3] != alpha) {
+            clearColor[0] = red;
+            clearColor[1] = green;
+            clearColor[2] = blue;
+            clearColor[3] = alpha;
+            GLES20.glClearColor(red, green, blue, alpha);
+        }
+    }
+}
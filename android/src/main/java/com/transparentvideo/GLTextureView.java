@@ -107,10 +107,10 @@ public class GLTextureView
     @Override
     protected void finalize() throws Throwable {
         try {
-            if (mGLThread != null) {
-                // GLThread may still be running if this view was never
-                // attached to a window.
-                mGLThread.requestExitAndWait();
+            if (mRenderTarget != null) {
+                // The shared GLThread may still be servicing this view if it
+                // was never detached from its window.
+                GLThread.detachAndWait(mRenderTarget);
             }
         } finally {
             super.finalize();
@@ -189,8 +189,10 @@ public class GLTextureView
     }
 
     /**
-     * Set the renderer associated with this view. Also starts the thread that
-     * will call the renderer, which in turn causes the rendering to start.
+     * Set the renderer associated with this view. Rendering starts once the view is
+     * attached to a window, at which point it is registered with the process-wide
+     * {@link GLThread} that renders every GLTextureView from a single thread and a single
+     * EGL context. Each view only owns its own EGL window surface.
      * <p>This method should be called once and only once in the life-cycle of
      * a GLTextureView.
      * <p>The following GLTextureView methods can only be called <em>before</em>
@@ -217,17 +219,19 @@ public class GLTextureView
     public void setRenderer(Renderer renderer) {
         checkRenderThreadState();
         if (mEGLConfigChooser == null) {
-            mEGLConfigChooser = new SimpleEGLConfigChooser(true);
+            mEGLConfigChooser = new SimpleEGLConfigChooser(mEGLContextClientVersion, true);
         }
         if (mEGLContextFactory == null) {
-            mEGLContextFactory = new DefaultContextFactory();
+            mEGLContextFactory = new DefaultContextFactory(mEGLContextClientVersion);
         }
         if (mEGLWindowSurfaceFactory == null) {
             mEGLWindowSurfaceFactory = new DefaultWindowSurfaceFactory();
         }
         mRenderer = renderer;
-        mGLThread = new GLThread(mThisWeakRef);
-        mGLThread.start();
+        mRenderTarget = new RenderTarget(mThisWeakRef, mRenderer);
+        if (isAttachedToWindow()) {
+            GLThread.attach(mRenderTarget);
+        }
     }
 
     /**
@@ -239,6 +243,10 @@ public class GLTextureView
      * If this method is not called, then by default
      * a context will be created with no shared context and
      * with a null attribute list.
+     * <p>
+     * The EGL context is shared by every GLTextureView, so it is created with the factory
+     * and config chooser of the first view that needs it. All views are expected to use
+     * compatible configurations.
      */
     public void setEGLContextFactory(EGLContextFactory factory) {
         checkRenderThreadState();
@@ -291,7 +299,7 @@ public class GLTextureView
      * @param needDepth
      */
     public void setEGLConfigChooser(boolean needDepth) {
-        setEGLConfigChooser(new SimpleEGLConfigChooser(needDepth));
+        setEGLConfigChooser(new SimpleEGLConfigChooser(mEGLContextClientVersion, needDepth));
     }
 
     /**
@@ -309,7 +317,7 @@ public class GLTextureView
      */
     public void setEGLConfigChooser(int redSize, int greenSize, int blueSize,
                                     int alphaSize, int depthSize, int stencilSize) {
-        setEGLConfigChooser(new ComponentSizeChooser(redSize, greenSize,
+        setEGLConfigChooser(new ComponentSizeChooser(mEGLContextClientVersion, redSize, greenSize,
                 blueSize, alphaSize, depthSize, stencilSize));
     }
 
@@ -361,7 +369,7 @@ public class GLTextureView
      * @see #RENDERMODE_WHEN_DIRTY
      */
     public void setRenderMode(int renderMode) {
-        mGLThread.setRenderMode(renderMode);
+        mRenderTarget.setRenderMode(renderMode);
     }
 
     /**
@@ -372,7 +380,7 @@ public class GLTextureView
      * @see #RENDERMODE_WHEN_DIRTY
      */
     public int getRenderMode() {
-        return mGLThread.getRenderMode();
+        return mRenderTarget.getRenderMode();
     }
 
     /**
@@ -383,7 +391,7 @@ public class GLTextureView
      * from any thread. Must not be called before a renderer has been set.
      */
     public void requestRender() {
-        mGLThread.requestRender();
+        mRenderTarget.requestRender();
     }
 
     /**
@@ -391,7 +399,7 @@ public class GLTextureView
      * not normally called or subclassed by clients of GLTextureView.
      */
     public void surfaceCreated(SurfaceTexture texture) {
-        mGLThread.surfaceCreated();
+        mRenderTarget.surfaceCreated();
     }
 
     /**
@@ -400,7 +408,7 @@ public class GLTextureView
      */
     public void surfaceDestroyed(SurfaceTexture texture) {
         // Surface will be destroyed when we return
-        mGLThread.surfaceDestroyed();
+        mRenderTarget.surfaceDestroyed();
     }
 
     /**
@@ -408,28 +416,68 @@ public class GLTextureView
      * not normally called or subclassed by clients of GLTextureView.
      */
     public void surfaceChanged(SurfaceTexture texture, int format, int w, int h) {
-        mGLThread.onWindowResize(w, h);
+        float scale = mRenderScale;
+        int longestSide = Math.max(w, h);
+        if (mMaxRenderSize > 0 && longestSide * scale > mMaxRenderSize) {
+            scale = (float) mMaxRenderSize / longestSide;
+        }
+        int bufferWidth = Math.max(1, Math.round(w * scale));
+        int bufferHeight = Math.max(1, Math.round(h * scale));
+        if (texture != null) {
+            // The compositor stretches the smaller buffer to the size of the view
+            texture.setDefaultBufferSize(bufferWidth, bufferHeight);
+        }
+        mRenderTarget.onWindowResize(bufferWidth, bufferHeight);
+    }
+
+    /**
+     * Sets the resolution of the rendered frames relative to the size of the view.
+     * The frames are scaled up to the view when composited, so values below 1 trade
+     * sharpness for fill rate and memory. Defaults to 1.
+     * <p>
+     * This method can only be called after {@link #setRenderer(Renderer)}
+     */
+    public void setRenderScale(float renderScale) {
+        mRenderScale = renderScale > 0 ? Math.min(renderScale, 1.0f) : 1.0f;
+        updateRenderSize();
+    }
+
+    /**
+     * Limits the longest side of the rendered frames, in pixels, whatever the size of
+     * the view. 0, the default, means no limit.
+     * <p>
+     * This method can only be called after {@link #setRenderer(Renderer)}
+     */
+    public void setMaxRenderSize(int maxRenderSize) {
+        mMaxRenderSize = Math.max(0, maxRenderSize);
+        updateRenderSize();
+    }
+
+    private void updateRenderSize() {
+        SurfaceTexture texture = getSurfaceTexture();
+        if (texture != null && getWidth() > 0 && getHeight() > 0) {
+            surfaceChanged(texture, 0, getWidth(), getHeight());
+        }
     }
 
     /**
      * Inform the view that the activity is paused. The owner of this view must
      * call this method when the activity is paused. Calling this method will
-     * pause the rendering thread.
+     * stop rendering this view and release its EGL surface.
      * Must not be called before a renderer has been set.
      */
     public void onPause() {
-        mGLThread.onPause();
+        mRenderTarget.onPause();
     }
 
     /**
      * Inform the view that the activity is resumed. The owner of this view must
      * call this method when the activity is resumed. Calling this method will
-     * recreate the OpenGL display and resume the rendering
-     * thread.
+     * recreate the EGL surface of this view and resume rendering it.
      * Must not be called before a renderer has been set.
      */
     public void onResume() {
-        mGLThread.onResume();
+        mRenderTarget.onResume();
     }
 
     /**
@@ -439,7 +487,27 @@ public class GLTextureView
      * @param r the runnable to be run on the GL rendering thread.
      */
     public void queueEvent(Runnable r) {
-        mGLThread.queueEvent(r);
+        mRenderTarget.queueEvent(r);
+    }
+
+    /**
+     * Queue a runnable to be run on the GL rendering thread shared by every GLTextureView,
+     * with the shared EGL context current. This can be used to prepare GL resources, such as
+     * shader programs, before the first view is attached.
+     * <p>
+     * If no view has created the shared context yet, it is created with the given client
+     * version and a config with exactly the specified r,g,b,a sizes, and at least the
+     * specified depth and stencil sizes. These must match the configuration of the views
+     * that will later use the context.
+     * @param r the runnable to be run on the GL rendering thread.
+     */
+    public static void queueSharedEvent(int eglContextClientVersion, int redSize, int greenSize,
+                                        int blueSize, int alphaSize, int depthSize,
+                                        int stencilSize, Runnable r) {
+        GLThread.queueSharedEvent(
+                new ComponentSizeChooser(eglContextClientVersion, redSize, greenSize, blueSize,
+                        alphaSize, depthSize, stencilSize),
+                new DefaultContextFactory(eglContextClientVersion), r);
     }
 
     /**
@@ -452,16 +520,15 @@ public class GLTextureView
         if (LOG_ATTACH_DETACH) {
             Log.d(TAG, "onAttachedToWindow reattach =" + mDetached);
         }
-        if (mDetached && (mRenderer != null)) {
-            int renderMode = RENDERMODE_CONTINUOUSLY;
-            if (mGLThread != null) {
-                renderMode = mGLThread.getRenderMode();
-            }
-            mGLThread = new GLThread(mThisWeakRef);
-            if (renderMode != RENDERMODE_CONTINUOUSLY) {
-                mGLThread.setRenderMode(renderMode);
+        if (mRenderer != null) {
+            if (mDetached) {
+                int renderMode = mRenderTarget.getRenderMode();
+                mRenderTarget = new RenderTarget(mThisWeakRef, mRenderer);
+                if (renderMode != RENDERMODE_CONTINUOUSLY) {
+                    mRenderTarget.setRenderMode(renderMode);
+                }
             }
-            mGLThread.start();
+            GLThread.attach(mRenderTarget);
         }
         mDetached = false;
     }
@@ -476,8 +543,8 @@ public class GLTextureView
         if (LOG_ATTACH_DETACH) {
             Log.d(TAG, "onDetachedFromWindow");
         }
-        if (mGLThread != null) {
-            mGLThread.requestExitAndWait();
+        if (mRenderTarget != null) {
+            GLThread.detachAndWait(mRenderTarget);
         }
         mDetached = true;
         super.onDetachedFromWindow();
@@ -503,7 +570,8 @@ public class GLTextureView
     }
 
     public void onSurfaceTextureUpdated(SurfaceTexture surface) {
-        requestRender();
+        // Called after each of our own swaps; requesting a render here would turn
+        // RENDERMODE_WHEN_DIRTY into a continuous loop
     }
 
     // ----------------------------------------------------------------------
@@ -578,8 +646,8 @@ public class GLTextureView
         /**
          * Called when the surface is created or recreated.
          * <p>
-         * Called when the rendering thread
-         * starts and whenever the EGL context is lost. The EGL context will typically
+         * Called when the view first gets an EGL surface on the shared rendering
+         * thread and whenever the EGL context is lost. The EGL context will typically
          * be lost when the Android device awakes after going to sleep.
          * <p>
          * Since this method is called at the beginning of rendering, as well as
@@ -643,6 +711,13 @@ public class GLTextureView
          */
         void onDrawFrame(GL10 gl);
 
+        /**
+         * Called when the view is detached from the shared rendering thread.
+         * <p>
+         * The EGL context outlives the view, so this is where the renderer must
+         * delete the GL objects it created in {@link #onSurfaceCreated(GL10, EGLConfig)}.
+         * @param gl the GL interface.
+         */
         void onSurfaceDestroyed(GL10 gl);
     }
 
@@ -657,9 +732,13 @@ public class GLTextureView
         void destroyContext(EGL10 egl, EGLDisplay display, EGLContext context);
     }
 
-    private class DefaultContextFactory implements EGLContextFactory {
+    private static class DefaultContextFactory implements EGLContextFactory {
         private int EGL_CONTEXT_CLIENT_VERSION = 0x3098;
 
+        DefaultContextFactory(int eglContextClientVersion) {
+            mEGLContextClientVersion = eglContextClientVersion;
+        }
+
         public EGLContext createContext(EGL10 egl, EGLDisplay display, EGLConfig config) {
             int[] attrib_list = {EGL_CONTEXT_CLIENT_VERSION, mEGLContextClientVersion,
                     EGL10.EGL_NONE };
@@ -678,6 +757,8 @@ public class GLTextureView
                 EglHelper.throwEglException("eglDestroyContex", egl.eglGetError());
             }
         }
+
+        private final int mEGLContextClientVersion;
     }
 
     /**
@@ -740,10 +821,10 @@ public class GLTextureView
         EGLConfig chooseConfig(EGL10 egl, EGLDisplay display);
     }
 
-    private abstract class BaseConfigChooser
+    private static abstract class BaseConfigChooser
             implements EGLConfigChooser {
-        public BaseConfigChooser(int[] configSpec) {
-            mConfigSpec = filterConfigSpec(configSpec);
+        public BaseConfigChooser(int eglContextClientVersion, int[] configSpec) {
+            mConfigSpec = filterConfigSpec(eglContextClientVersion, configSpec);
         }
 
         public EGLConfig chooseConfig(EGL10 egl, EGLDisplay display) {
@@ -777,8 +858,8 @@ public class GLTextureView
 
         protected int[] mConfigSpec;
 
-        private int[] filterConfigSpec(int[] configSpec) {
-            if (mEGLContextClientVersion != 2) {
+        private int[] filterConfigSpec(int eglContextClientVersion, int[] configSpec) {
+            if (eglContextClientVersion != 2) {
                 return configSpec;
             }
             /* We know none of the subclasses define EGL_RENDERABLE_TYPE.
@@ -798,10 +879,10 @@ public class GLTextureView
      * Choose a configuration with exactly the specified r,g,b,a sizes,
      * and at least the specified depth and stencil sizes.
      */
-    private class ComponentSizeChooser extends BaseConfigChooser {
-        public ComponentSizeChooser(int redSize, int greenSize, int blueSize,
+    private static class ComponentSizeChooser extends BaseConfigChooser {
+        public ComponentSizeChooser(int eglContextClientVersion, int redSize, int greenSize, int blueSize,
                                     int alphaSize, int depthSize, int stencilSize) {
-            super(new int[] {
+            super(eglContextClientVersion, new int[] {
                     EGL10.EGL_RED_SIZE, redSize,
                     EGL10.EGL_GREEN_SIZE, greenSize,
                     EGL10.EGL_BLUE_SIZE, blueSize,
@@ -868,26 +949,25 @@ public class GLTextureView
      * or without a depth buffer.
      *
      */
-    private class SimpleEGLConfigChooser extends ComponentSizeChooser {
-        public SimpleEGLConfigChooser(boolean withDepthBuffer) {
-            super(8, 8, 8, 0, withDepthBuffer ? 16 : 0, 0);
+    private static class SimpleEGLConfigChooser extends ComponentSizeChooser {
+        public SimpleEGLConfigChooser(int eglContextClientVersion, boolean withDepthBuffer) {
+            super(eglContextClientVersion, 8, 8, 8, 0, withDepthBuffer ? 16 : 0, 0);
         }
     }
 
     /**
-     * An EGL helper class.
+     * An EGL helper class. Owns the display, the config and the single EGL context
+     * shared by every GLTextureView. Window surfaces are created per view.
      */
 
     private static class EglHelper {
-        public EglHelper(WeakReference<GLTextureView> glSurfaceViewWeakRef) {
-            mGLSurfaceViewWeakRef = glSurfaceViewWeakRef;
-        }
 
         /**
-         * Initialize EGL for a given configuration spec.
-         * @param
+         * Initialize EGL and create the shared context.
+         * @param configChooser the chooser of the view, or shared event, that needs the context.
+         * @param contextFactory the factory used to create and later destroy the context.
          */
-        public void start() {
+        public void start(EGLConfigChooser configChooser, EGLContextFactory contextFactory) {
             if (LOG_EGL) {
                 Log.w("EglHelper", "start() tid=" + Thread.currentThread().getId());
             }
@@ -912,19 +992,14 @@ public class GLTextureView
             if(!mEgl.eglInitialize(mEglDisplay, version)) {
                 throw new RuntimeException("eglInitialize failed");
             }
-            GLTextureView view = mGLSurfaceViewWeakRef.get();
-            if (view == null) {
-                mEglConfig = null;
-                mEglContext = null;
-            } else {
-                mEglConfig = view.mEGLConfigChooser.chooseConfig(mEgl, mEglDisplay);
+            mEglConfig = configChooser.chooseConfig(mEgl, mEglDisplay);
+            mEGLContextFactory = contextFactory;
 
-                /*
-                * Create an EGL context. We want to do this as rarely as we can, because an
-                * EGL context is a somewhat heavy object.
-                */
-                mEglContext = view.mEGLContextFactory.createContext(mEgl, mEglDisplay, mEglConfig);
-            }
+            /*
+            * Create an EGL context. We want to do this as rarely as we can, because an
+            * EGL context is a somewhat heavy object.
+            */
+            mEglContext = mEGLContextFactory.createContext(mEgl, mEglDisplay, mEglConfig);
             if (mEglContext == null || mEglContext == EGL10.EGL_NO_CONTEXT) {
                 mEglContext = null;
                 throwEglException("createContext");
@@ -933,16 +1008,24 @@ public class GLTextureView
                 Log.w("EglHelper", "createContext " + mEglContext + " tid=" + Thread.currentThread().getId());
             }
 
-            mEglSurface = null;
+            /*
+             * A 1x1 pbuffer lets the context be made current while no view has a window
+             * surface, e.g. to delete the GL objects of a view that is being detached.
+             * If the config does not support pbuffers we rely on surfaceless contexts.
+             */
+            mPbufferSurface = mEgl.eglCreatePbufferSurface(mEglDisplay, mEglConfig,
+                    new int[] { EGL10.EGL_WIDTH, 1, EGL10.EGL_HEIGHT, 1, EGL10.EGL_NONE });
+            if (mPbufferSurface == null) {
+                mPbufferSurface = EGL10.EGL_NO_SURFACE;
+            }
         }
 
         /**
-         * Create an egl surface for the current SurfaceHolder surface. If a surface
-         * already exists, destroy it before creating the new surface.
+         * Create an egl window surface for the SurfaceTexture of the given view.
          *
-         * @return true if the surface was created successfully.
+         * @return the new surface, or null if it could not be created.
          */
-        public boolean createSurface() {
+        public EGLSurface createSurface(GLTextureView view) {
             if (LOG_EGL) {
                 Log.w("EglHelper", "createSurface()  tid=" + Thread.currentThread().getId());
             }
@@ -959,55 +1042,49 @@ public class GLTextureView
                 throw new RuntimeException("mEglConfig not initialized");
             }
 
-            /*
-             *  The window size has changed, so we need to create a new
-             *  surface.
-             */
-            destroySurfaceImp();
-
             /*
              * Create an EGL surface we can render into.
              */
-            GLTextureView view = mGLSurfaceViewWeakRef.get();
-            if (view != null) {
-                mEglSurface = view.mEGLWindowSurfaceFactory.createWindowSurface(mEgl,
-                        mEglDisplay, mEglConfig, view.getSurfaceTexture());
-            } else {
-                mEglSurface = null;
-            }
+            EGLSurface surface = view.mEGLWindowSurfaceFactory.createWindowSurface(mEgl,
+                    mEglDisplay, mEglConfig, view.getSurfaceTexture());
 
-            if (mEglSurface == null || mEglSurface == EGL10.EGL_NO_SURFACE) {
+            if (surface == null || surface == EGL10.EGL_NO_SURFACE) {
                 int error = mEgl.eglGetError();
                 if (error == EGL10.EGL_BAD_NATIVE_WINDOW) {
                     Log.e("EglHelper", "createWindowSurface returned EGL_BAD_NATIVE_WINDOW.");
                 }
-                return false;
+                return null;
             }
+            return surface;
+        }
 
-            /*
-             * Before we can issue GL commands, we need to make sure
-             * the context is current and bound to a surface.
-             */
-            if (!mEgl.eglMakeCurrent(mEglDisplay, mEglSurface, mEglSurface, mEglContext)) {
+        /**
+         * Make the shared context current and bound to the given surface.
+         * @param surface a window surface, or null to bind the internal pbuffer.
+         * @return true if the context was made current.
+         */
+        public boolean makeCurrent(EGLSurface surface) {
+            if (surface == null) {
+                surface = mPbufferSurface;
+            }
+            if (!mEgl.eglMakeCurrent(mEglDisplay, surface, surface, mEglContext)) {
                 /*
                  * Could not make the context current, probably because the underlying
-                 * SurfaceView surface has been destroyed.
+                 * TextureView surface has been destroyed.
                  */
                 logEglErrorAsWarning("EGLHelper", "eglMakeCurrent", mEgl.eglGetError());
                 return false;
             }
-
             return true;
         }
 
         /**
-         * Create a GL object for the current EGL context.
+         * Create a GL object for the shared EGL context, wrapped as requested by the view.
          * @return
          */
-        GL createGL() {
+        GL createGL(GLTextureView view) {
 
             GL gl = mEglContext.getGL();
-            GLTextureView view = mGLSurfaceViewWeakRef.get();
             if (view != null) {
                 if (view.mGLWrapper != null) {
                     gl = view.mGLWrapper.wrap(gl);
@@ -1029,33 +1106,33 @@ public class GLTextureView
         }
 
         /**
-         * Display the current render surface.
+         * Display the given render surface.
          * @return the EGL error code from eglSwapBuffers.
          */
-        public int swap() {
-            if (! mEgl.eglSwapBuffers(mEglDisplay, mEglSurface)) {
+        public int swap(EGLSurface surface) {
+            if (! mEgl.eglSwapBuffers(mEglDisplay, surface)) {
                 return mEgl.eglGetError();
             }
             return EGL10.EGL_SUCCESS;
         }
 
-        public void destroySurface() {
+        /**
+         * Destroy a window surface created by {@link #createSurface(GLTextureView)}.
+         * @param view the owner of the surface, or null if it has been garbage collected.
+         */
+        public void destroySurface(GLTextureView view, EGLSurface surface) {
             if (LOG_EGL) {
                 Log.w("EglHelper", "destroySurface()  tid=" + Thread.currentThread().getId());
             }
-            destroySurfaceImp();
-        }
-
-        private void destroySurfaceImp() {
-            if (mEglSurface != null && mEglSurface != EGL10.EGL_NO_SURFACE) {
+            if (surface != null && surface != EGL10.EGL_NO_SURFACE) {
                 mEgl.eglMakeCurrent(mEglDisplay, EGL10.EGL_NO_SURFACE,
                         EGL10.EGL_NO_SURFACE,
                         EGL10.EGL_NO_CONTEXT);
-                GLTextureView view = mGLSurfaceViewWeakRef.get();
                 if (view != null) {
-                    view.mEGLWindowSurfaceFactory.destroySurface(mEgl, mEglDisplay, mEglSurface);
+                    view.mEGLWindowSurfaceFactory.destroySurface(mEgl, mEglDisplay, surface);
+                } else {
+                    mEgl.eglDestroySurface(mEglDisplay, surface);
                 }
-                mEglSurface = null;
             }
         }
 
@@ -1063,11 +1140,19 @@ public class GLTextureView
             if (LOG_EGL) {
                 Log.w("EglHelper", "finish() tid=" + Thread.currentThread().getId());
             }
-            if (mEglContext != null) {
-                GLTextureView view = mGLSurfaceViewWeakRef.get();
-                if (view != null) {
-                    view.mEGLContextFactory.destroyContext(mEgl, mEglDisplay, mEglContext);
+            if (mEglDisplay != null) {
+                mEgl.eglMakeCurrent(mEglDisplay, EGL10.EGL_NO_SURFACE,
+                        EGL10.EGL_NO_SURFACE,
+                        EGL10.EGL_NO_CONTEXT);
+            }
+            if (mPbufferSurface != null) {
+                if (mPbufferSurface != EGL10.EGL_NO_SURFACE) {
+                    mEgl.eglDestroySurface(mEglDisplay, mPbufferSurface);
                 }
+                mPbufferSurface = null;
+            }
+            if (mEglContext != null) {
+                mEGLContextFactory.destroyContext(mEgl, mEglDisplay, mEglContext);
                 mEglContext = null;
             }
             if (mEglDisplay != null) {
@@ -1097,367 +1182,31 @@ public class GLTextureView
             return function + " failed: " + error;
         }
 
-        private WeakReference<GLTextureView> mGLSurfaceViewWeakRef;
         EGL10 mEgl;
         EGLDisplay mEglDisplay;
-        EGLSurface mEglSurface;
         EGLConfig mEglConfig;
         EGLContext mEglContext;
+        EGLSurface mPbufferSurface;
+        EGLContextFactory mEGLContextFactory;
 
     }
 
     /**
-     * A generic GL Thread. Takes care of initializing EGL and GL. Delegates
-     * to a Renderer instance to do the actual drawing. Can be configured to
-     * render continuously or on request.
-     *
-     * All potentially blocking synchronization is done through the
-     * sGLThreadManager object. This avoids multiple-lock ordering issues.
-     *
+     * The rendering state of a single GLTextureView, serviced by the shared {@link GLThread}.
+     * The methods called from the UI thread mirror the ones of GLSurfaceView's GLThread.
      */
-    static class GLThread extends Thread {
-        GLThread(WeakReference<GLTextureView> glSurfaceViewWeakRef) {
-            super();
+    static class RenderTarget {
+        RenderTarget(WeakReference<GLTextureView> glTextureViewWeakRef, Renderer renderer) {
             mWidth = 0;
             mHeight = 0;
             mRequestRender = true;
             mRenderMode = RENDERMODE_CONTINUOUSLY;
-            mGLSurfaceViewWeakRef = glSurfaceViewWeakRef;
-        }
-
-        @Override
-        public void run() {
-            setName("GLThread " + getId());
-            if (LOG_THREADS) {
-                Log.i("GLThread", "starting tid=" + getId());
-            }
-
-            try {
-                guardedRun();
-            } catch (InterruptedException e) {
-                // fall thru and exit normally
-            } catch (IllegalStateException e) {
-              // fall thru and exit normally
-            }  catch (Exception e) {
-              // fall thru and exit normally
-            } finally {
-                sGLThreadManager.threadExiting(this);
-            }
-        }
-
-        /*
-         * This private method should only be called inside a
-         * synchronized(sGLThreadManager) block.
-         */
-        private void stopEglSurfaceLocked() {
-            if (mHaveEglSurface) {
-                mHaveEglSurface = false;
-                mEglHelper.destroySurface();
-            }
-        }
-
-        /*
-         * This private method should only be called inside a
-         * synchronized(sGLThreadManager) block.
-         */
-        private void stopEglContextLocked() {
-            if (mHaveEglContext) {
-                mEglHelper.finish();
-                mHaveEglContext = false;
-                sGLThreadManager.releaseEglContextLocked(this);
-            }
-        }
-        private void guardedRun() throws InterruptedException {
-            mEglHelper = new EglHelper(mGLSurfaceViewWeakRef);
-            mHaveEglContext = false;
-            mHaveEglSurface = false;
-            try {
-                GL10 gl = null;
-                boolean createEglContext = false;
-                boolean createEglSurface = false;
-                boolean createGlInterface = false;
-                boolean lostEglContext = false;
-                boolean sizeChanged = false;
-                boolean wantRenderNotification = false;
-                boolean doRenderNotification = false;
-                boolean askedToReleaseEglContext = false;
-                int w = 0;
-                int h = 0;
-                Runnable event = null;
-
-                while (true) {
-                    synchronized (sGLThreadManager) {
-                        while (true) {
-                            if (mShouldExit) {
-                                return;
-                            }
-
-                            if (! mEventQueue.isEmpty()) {
-                                event = mEventQueue.remove(0);
-                                break;
-                            }
-
-                            // Update the pause state.
-                            boolean pausing = false;
-                            if (mPaused != mRequestPaused) {
-                                pausing = mRequestPaused;
-                                mPaused = mRequestPaused;
-                                sGLThreadManager.notifyAll();
-                                if (LOG_PAUSE_RESUME) {
-                                    Log.i("GLThread", "mPaused is now " + mPaused + " tid=" + getId());
-                                }
-                            }
-
-                            // Do we need to give up the EGL context?
-                            if (mShouldReleaseEglContext) {
-                                if (LOG_SURFACE) {
-                                    Log.i("GLThread", "releasing EGL context because asked to tid=" + getId());
-                                }
-                                stopEglSurfaceLocked();
-                                stopEglContextLocked();
-                                mShouldReleaseEglContext = false;
-                                askedToReleaseEglContext = true;
-                            }
-
-                            // Have we lost the EGL context?
-                            if (lostEglContext) {
-                                stopEglSurfaceLocked();
-                                stopEglContextLocked();
-                                lostEglContext = false;
-                            }
-
-                            // When pausing, release the EGL surface:
-                            if (pausing && mHaveEglSurface) {
-                                if (LOG_SURFACE) {
-                                    Log.i("GLThread", "releasing EGL surface because paused tid=" + getId());
-                                }
-                                stopEglSurfaceLocked();
-                            }
-
-                            // When pausing, optionally release the EGL Context:
-                            if (pausing && mHaveEglContext) {
-                                GLTextureView view = mGLSurfaceViewWeakRef.get();
-                                boolean preserveEglContextOnPause = view == null ?
-                                        false : view.mPreserveEGLContextOnPause;
-                                if (!preserveEglContextOnPause || sGLThreadManager.shouldReleaseEGLContextWhenPausing()) {
-                                    stopEglContextLocked();
-                                    if (LOG_SURFACE) {
-                                        Log.i("GLThread", "releasing EGL context because paused tid=" + getId());
-                                    }
-                                }
-                            }
-
-                            // When pausing, optionally terminate EGL:
-                            if (pausing) {
-                                if (sGLThreadManager.shouldTerminateEGLWhenPausing()) {
-                                    mEglHelper.finish();
-                                    if (LOG_SURFACE) {
-                                        Log.i("GLThread", "terminating EGL because paused tid=" + getId());
-                                    }
-                                }
-                            }
-
-                            // Have we lost the SurfaceView surface?
-                            if ((! mHasSurface) && (! mWaitingForSurface)) {
-                                if (LOG_SURFACE) {
-                                    Log.i("GLThread", "noticed surfaceView surface lost tid=" + getId());
-                                }
-                                if (mHaveEglSurface) {
-                                    stopEglSurfaceLocked();
-                                }
-                                mWaitingForSurface = true;
-                                mSurfaceIsBad = false;
-                                sGLThreadManager.notifyAll();
-                            }
-
-                            // Have we acquired the surface view surface?
-                            if (mHasSurface && mWaitingForSurface) {
-                                if (LOG_SURFACE) {
-                                    Log.i("GLThread", "noticed surfaceView surface acquired tid=" + getId());
-                                }
-                                mWaitingForSurface = false;
-                                sGLThreadManager.notifyAll();
-                            }
-
-                            if (doRenderNotification) {
-                                if (LOG_SURFACE) {
-                                    Log.i("GLThread", "sending render notification tid=" + getId());
-                                }
-                                wantRenderNotification = false;
-                                doRenderNotification = false;
-                                mRenderComplete = true;
-                                sGLThreadManager.notifyAll();
-                            }
-
-                            // Ready to draw?
-                            if (readyToDraw()) {
-
-                                // If we don't have an EGL context, try to acquire one.
-                                if (! mHaveEglContext) {
-                                    if (askedToReleaseEglContext) {
-                                        askedToReleaseEglContext = false;
-                                    } else if (sGLThreadManager.tryAcquireEglContextLocked(this)) {
-                                        try {
-                                            mEglHelper.start();
-                                        } catch (RuntimeException t) {
-                                            sGLThreadManager.releaseEglContextLocked(this);
-                                            throw t;
-                                        }
-                                        mHaveEglContext = true;
-                                        createEglContext = true;
-
-                                        sGLThreadManager.notifyAll();
-                                    }
-                                }
-
-                                if (mHaveEglContext && !mHaveEglSurface) {
-                                    mHaveEglSurface = true;
-                                    createEglSurface = true;
-                                    createGlInterface = true;
-                                    sizeChanged = true;
-                                }
-
-                                if (mHaveEglSurface) {
-                                    if (mSizeChanged) {
-                                        sizeChanged = true;
-                                        w = mWidth;
-                                        h = mHeight;
-                                        wantRenderNotification = true;
-                                        if (LOG_SURFACE) {
-                                            Log.i("GLThread",
-                                                    "noticing that we want render notification tid="
-                                                            + getId());
-                                        }
-
-                                        // Destroy and recreate the EGL surface.
-                                        createEglSurface = true;
-
-                                        mSizeChanged = false;
-                                    }
-                                    mRequestRender = false;
-                                    sGLThreadManager.notifyAll();
-                                    break;
-                                }
-                            }
-
-                            // By design, this is the only place in a GLThread thread where we wait().
-                            if (LOG_THREADS) {
-                                Log.i("GLThread", "waiting tid=" + getId()
-                                        + " mHaveEglContext: " + mHaveEglContext
-                                        + " mHaveEglSurface: " + mHaveEglSurface
-                                        + " mPaused: " + mPaused
-                                        + " mHasSurface: " + mHasSurface
-                                        + " mSurfaceIsBad: " + mSurfaceIsBad
-                                        + " mWaitingForSurface: " + mWaitingForSurface
-                                        + " mWidth: " + mWidth
-                                        + " mHeight: " + mHeight
-                                        + " mRequestRender: " + mRequestRender
-                                        + " mRenderMode: " + mRenderMode);
-                            }
-                            sGLThreadManager.wait();
-                        }
-                    } // end of synchronized(sGLThreadManager)
-
-                    if (event != null) {
-                        event.run();
-                        event = null;
-                        continue;
-                    }
-
-                    if (createEglSurface) {
-                        if (LOG_SURFACE) {
-                            Log.w("GLThread", "egl createSurface");
-                        }
-                        if (!mEglHelper.createSurface()) {
-                            synchronized(sGLThreadManager) {
-                                mSurfaceIsBad = true;
-                                sGLThreadManager.notifyAll();
-                            }
-                            continue;
-                        }
-                        createEglSurface = false;
-                    }
-
-                    if (createGlInterface) {
-                        gl = (GL10) mEglHelper.createGL();
-
-                        sGLThreadManager.checkGLDriver(gl);
-                        createGlInterface = false;
-                    }
-
-                    if (createEglContext) {
-                        if (LOG_RENDERER) {
-                            Log.w("GLThread", "onSurfaceCreated");
-                        }
-                        GLTextureView view = mGLSurfaceViewWeakRef.get();
-                        if (view != null) {
-                            view.mRenderer.onSurfaceCreated(gl, mEglHelper.mEglConfig);
-                        }
-                        createEglContext = false;
-                    }
-
-                    if (sizeChanged) {
-                        if (LOG_RENDERER) {
-                            Log.w("GLThread", "onSurfaceChanged(" + w + ", " + h + ")");
-                        }
-                        GLTextureView view = mGLSurfaceViewWeakRef.get();
-                        if (view != null) {
-                            view.mRenderer.onSurfaceChanged(gl, w, h);
-                        }
-                        sizeChanged = false;
-                    }
-
-                    if (LOG_RENDERER_DRAW_FRAME) {
-                        Log.w("GLThread", "onDrawFrame tid=" + getId());
-                    }
-                    {
-                        GLTextureView view = mGLSurfaceViewWeakRef.get();
-                        if (view != null) {
-                            view.mRenderer.onDrawFrame(gl);
-                        }
-                    }
-                    int swapError = mEglHelper.swap();
-                    switch (swapError) {
-                        case EGL10.EGL_SUCCESS:
-                            break;
-                        case EGL11.EGL_CONTEXT_LOST:
-                            if (LOG_SURFACE) {
-                                Log.i("GLThread", "egl context lost tid=" + getId());
-                            }
-                            lostEglContext = true;
-                            break;
-                        default:
-                            // Other errors typically mean that the current surface is bad,
-                            // probably because the SurfaceView surface has been destroyed,
-                            // but we haven't been notified yet.
-                            // Log the error to help developers understand why rendering stopped.
-                            EglHelper.logEglErrorAsWarning("GLThread", "eglSwapBuffers", swapError);
-
-                            synchronized(sGLThreadManager) {
-                                mSurfaceIsBad = true;
-                                sGLThreadManager.notifyAll();
-                            }
-                            break;
-                    }
-
-                    if (wantRenderNotification) {
-                        doRenderNotification = true;
-                    }
-                }
-
-            } finally {
-                /*
-                 * clean-up everything...
-                 */
-                synchronized (sGLThreadManager) {
-                    stopEglSurfaceLocked();
-                    stopEglContextLocked();
-                }
-            }
+            mGLTextureViewWeakRef = glTextureViewWeakRef;
+            mRenderer = renderer;
         }
 
         public boolean ableToDraw() {
-            return mHaveEglContext && mHaveEglSurface && readyToDraw();
+            return mHaveEglSurface && readyToDraw();
         }
 
         private boolean readyToDraw() {
@@ -1492,7 +1241,7 @@ public class GLTextureView
         public void surfaceCreated() {
             synchronized(sGLThreadManager) {
                 if (LOG_THREADS) {
-                    Log.i("GLThread", "surfaceCreated tid=" + getId());
+                    Log.i("GLThread", "surfaceCreated target=" + this);
                 }
                 mHasSurface = true;
                 sGLThreadManager.notifyAll();
@@ -1509,7 +1258,7 @@ public class GLTextureView
         public void surfaceDestroyed() {
             synchronized(sGLThreadManager) {
                 if (LOG_THREADS) {
-                    Log.i("GLThread", "surfaceDestroyed tid=" + getId());
+                    Log.i("GLThread", "surfaceDestroyed target=" + this);
                 }
                 mHasSurface = false;
                 sGLThreadManager.notifyAll();
@@ -1526,7 +1275,7 @@ public class GLTextureView
         public void onPause() {
             synchronized (sGLThreadManager) {
                 if (LOG_PAUSE_RESUME) {
-                    Log.i("GLThread", "onPause tid=" + getId());
+                    Log.i("GLThread", "onPause target=" + this);
                 }
                 mRequestPaused = true;
                 sGLThreadManager.notifyAll();
@@ -1546,7 +1295,7 @@ public class GLTextureView
         public void onResume() {
             synchronized (sGLThreadManager) {
                 if (LOG_PAUSE_RESUME) {
-                    Log.i("GLThread", "onResume tid=" + getId());
+                    Log.i("GLThread", "onResume target=" + this);
                 }
                 mRequestPaused = false;
                 mRequestRender = true;
@@ -1574,11 +1323,11 @@ public class GLTextureView
                 mRenderComplete = false;
                 sGLThreadManager.notifyAll();
 
-                // Wait for thread to react to resize and render a frame
+                // Wait for the shared thread to react to resize and render a frame
                 while (! mExited && !mPaused && !mRenderComplete
                         && ableToDraw()) {
                     if (LOG_SURFACE) {
-                        Log.i("Main thread", "onWindowResize waiting for render complete from tid=" + getId());
+                        Log.i("Main thread", "onWindowResize waiting for render complete of target=" + this);
                     }
                     try {
                         sGLThreadManager.wait();
@@ -1589,29 +1338,9 @@ public class GLTextureView
             }
         }
 
-        public void requestExitAndWait() {
-            // don't call this from GLThread thread or it is a guaranteed
-            // deadlock!
-            synchronized(sGLThreadManager) {
-                mShouldExit = true;
-                sGLThreadManager.notifyAll();
-                while (! mExited) {
-                    try {
-                        sGLThreadManager.wait();
-                    } catch (InterruptedException ex) {
-                        Thread.currentThread().interrupt();
-                    }
-                }
-            }
-        }
-
-        public void requestReleaseEglContextLocked() {
-            mShouldReleaseEglContext = true;
-            sGLThreadManager.notifyAll();
-        }
-
         /**
-         * Queue an "event" to be run on the GL rendering thread.
+         * Queue an "event" to be run on the GL rendering thread, with the shared
+         * context current on this view's surface.
          * @param r the runnable to be run on the GL rendering thread.
          */
         public void queueEvent(Runnable r) {
@@ -1624,44 +1353,568 @@ public class GLTextureView
             }
         }
 
-        // Once the thread is started, all accesses to the following member
-        // variables are protected by the sGLThreadManager monitor
-        private boolean mShouldExit;
-        private boolean mExited;
+        // All accesses to the following member variables are protected by
+        // the sGLThreadManager monitor
+        private boolean mExited = true; // true until attached, and again once detached
+        private boolean mShouldDetach;
         private boolean mRequestPaused;
         private boolean mPaused;
         private boolean mHasSurface;
         private boolean mSurfaceIsBad;
         private boolean mWaitingForSurface;
-        private boolean mHaveEglContext;
         private boolean mHaveEglSurface;
-        private boolean mShouldReleaseEglContext;
         private int mWidth;
         private int mHeight;
         private int mRenderMode;
         private boolean mRequestRender;
         private boolean mRenderComplete;
+        private boolean mWantRenderNotification;
         private ArrayList<Runnable> mEventQueue = new ArrayList<Runnable>();
         private boolean mSizeChanged = true;
 
         // End of member variables protected by the sGLThreadManager monitor.
 
-        private EglHelper mEglHelper;
+        // The following member variables are only accessed by the GLThread.
+        private EGLSurface mEglSurface;
+        private GL10 mGl;
+        private boolean mRendererInitialized;
+        private boolean mCreateEglSurface;
+        private boolean mPendingSizeChange;
+        private int mPendingWidth;
+        private int mPendingHeight;
 
         /**
-         * Set once at thread construction time, nulled out when the parent view is garbage
-         * called. This weak reference allows the GLTextureView to be garbage collected while
-         * the GLThread is still alive.
+         * Set once at construction time, nulled out when the view is garbage
+         * collected. This weak reference allows the GLTextureView to be garbage collected
+         * while it is still registered with the GLThread.
          */
-        private WeakReference<GLTextureView> mGLSurfaceViewWeakRef;
-
+        private final WeakReference<GLTextureView> mGLTextureViewWeakRef;
+        // Held strongly, so that its GL resources are still released on the shared context
+        // once the view was garbage collected
+        private final Renderer mRenderer;
     }
 
-    static class LogWriter extends Writer {
+    /**
+     * The GL Thread shared by every GLTextureView of the process. Takes care of
+     * initializing EGL and GL, owns the single EGL context and renders every attached
+     * {@link RenderTarget} into its own window surface, in round-robin order.
+     * Delegates to the Renderer of each view to do the actual drawing. Each view can
+     * be configured to render continuously or on request.
+     *
+     * All potentially blocking synchronization is done through the
+     * sGLThreadManager object. This avoids multiple-lock ordering issues.
+     *
+     */
+    static class GLThread extends Thread {
 
-        @Override public void close() {
-            flushBuilder();
-        }
+        /**
+         * Register a view with the shared thread, starting the thread if needed.
+         */
+        static void attach(RenderTarget target) {
+            synchronized (sGLThreadManager) {
+                if (!target.mExited) {
+                    return;
+                }
+                if (sGLThread == null) {
+                    sGLThread = new GLThread();
+                    sGLThread.start();
+                }
+                target.mExited = false;
+                target.mShouldDetach = false;
+                sGLThread.mTargets.add(target);
+                sGLThreadManager.notifyAll();
+            }
+        }
+
+        /**
+         * Queue an event that is not tied to any view. The shared context is created with
+         * the given chooser and factory if no view has created it yet.
+         */
+        static void queueSharedEvent(EGLConfigChooser configChooser,
+                                     EGLContextFactory contextFactory, Runnable r) {
+            if (r == null) {
+                throw new IllegalArgumentException("r must not be null");
+            }
+            synchronized (sGLThreadManager) {
+                if (sGLThread == null) {
+                    sGLThread = new GLThread();
+                    sGLThread.start();
+                }
+                sGLThread.mSharedEventQueue.add(new SharedEvent(configChooser, contextFactory, r));
+                sGLThreadManager.notifyAll();
+            }
+        }
+
+        /**
+         * Unregister a view and wait until the shared thread has released its renderer
+         * resources and its EGL surface.
+         */
+        static void detachAndWait(RenderTarget target) {
+            // don't call this from GLThread thread or it is a guaranteed
+            // deadlock!
+            synchronized (sGLThreadManager) {
+                target.mShouldDetach = true;
+                sGLThreadManager.notifyAll();
+                while (! target.mExited) {
+                    try {
+                        sGLThreadManager.wait();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            setName("GLThread " + getId());
+            if (LOG_THREADS) {
+                Log.i("GLThread", "starting tid=" + getId());
+            }
+
+            try {
+                guardedRun();
+            } catch (InterruptedException e) {
+                // fall thru and exit normally
+            } catch (IllegalStateException e) {
+              // fall thru and exit normally
+            }  catch (Exception e) {
+              // fall thru and exit normally
+            } finally {
+                sGLThreadManager.threadExiting(this);
+            }
+        }
+
+        /*
+         * This private method should only be called inside a
+         * synchronized(sGLThreadManager) block.
+         */
+        private void stopEglSurfaceLocked(RenderTarget target) {
+            if (target.mHaveEglSurface) {
+                target.mHaveEglSurface = false;
+                if (target.mEglSurface != null) {
+                    mEglHelper.destroySurface(target.mGLTextureViewWeakRef.get(), target.mEglSurface);
+                    target.mEglSurface = null;
+                }
+            }
+        }
+
+        /*
+         * Stops servicing a target whose renderer threw: its EGL surface is released and it
+         * is marked exited, so the view attaches again when it is next attached to a window.
+         * This private method should only be called inside a
+         * synchronized(sGLThreadManager) block.
+         */
+        private void detachFailedTargetLocked(RenderTarget target) {
+            try {
+                stopEglSurfaceLocked(target);
+            } catch (RuntimeException e) {
+                Log.e("GLThread", "Could not release the EGL surface of target=" + target, e);
+                target.mHaveEglSurface = false;
+                target.mEglSurface = null;
+            }
+            target.mRendererInitialized = false;
+            target.mGl = null;
+            mTargets.remove(target);
+            target.mExited = true;
+            sGLThreadManager.notifyAll();
+        }
+
+        /*
+         * This private method should only be called inside a
+         * synchronized(sGLThreadManager) block.
+         */
+        private void stopEglContextLocked() {
+            if (mHaveEglContext) {
+                for (RenderTarget target : mTargets) {
+                    stopEglSurfaceLocked(target);
+                    target.mRendererInitialized = false;
+                    target.mGl = null;
+                }
+                mEglHelper.finish();
+                mHaveEglContext = false;
+            }
+        }
+
+        /*
+         * This private method should only be called inside a
+         * synchronized(sGLThreadManager) block.
+         */
+        private void startEglContextLocked(EGLConfigChooser configChooser,
+                                           EGLContextFactory contextFactory) {
+            if (! mHaveEglContext) {
+                mEglHelper.start(configChooser, contextFactory);
+                mHaveEglContext = true;
+                sGLThreadManager.notifyAll();
+            }
+        }
+
+        /*
+         * The shared context is only given up once every attached view is paused
+         * and none of them asked to preserve it. This private method should only be
+         * called inside a synchronized(sGLThreadManager) block.
+         */
+        private boolean shouldReleaseEglContextLocked() {
+            if (mTargets.isEmpty()) {
+                return false;
+            }
+            for (RenderTarget target : mTargets) {
+                GLTextureView view = target.mGLTextureViewWeakRef.get();
+                if (!target.mPaused || (view != null && view.mPreserveEGLContextOnPause)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /*
+         * Updates the pause and surface state of a target and decides whether it has
+         * to be drawn. This private method should only be called inside a
+         * synchronized(sGLThreadManager) block.
+         */
+        private boolean prepareToDrawLocked(RenderTarget target) {
+            // Update the pause state.
+            boolean pausing = false;
+            if (target.mPaused != target.mRequestPaused) {
+                pausing = target.mRequestPaused;
+                target.mPaused = target.mRequestPaused;
+                sGLThreadManager.notifyAll();
+                if (LOG_PAUSE_RESUME) {
+                    Log.i("GLThread", "mPaused is now " + target.mPaused + " target=" + target);
+                }
+            }
+
+            // When pausing, release the EGL surface:
+            if (pausing && target.mHaveEglSurface) {
+                if (LOG_SURFACE) {
+                    Log.i("GLThread", "releasing EGL surface because paused target=" + target);
+                }
+                stopEglSurfaceLocked(target);
+            }
+
+            // Have we lost the TextureView surface?
+            if ((! target.mHasSurface) && (! target.mWaitingForSurface)) {
+                if (LOG_SURFACE) {
+                    Log.i("GLThread", "noticed surfaceView surface lost target=" + target);
+                }
+                if (target.mHaveEglSurface) {
+                    stopEglSurfaceLocked(target);
+                }
+                target.mWaitingForSurface = true;
+                target.mSurfaceIsBad = false;
+                sGLThreadManager.notifyAll();
+            }
+
+            // Have we acquired the TextureView surface?
+            if (target.mHasSurface && target.mWaitingForSurface) {
+                if (LOG_SURFACE) {
+                    Log.i("GLThread", "noticed surfaceView surface acquired target=" + target);
+                }
+                target.mWaitingForSurface = false;
+                sGLThreadManager.notifyAll();
+            }
+
+            // Ready to draw?
+            if (!target.readyToDraw()) {
+                return false;
+            }
+
+            // Detached on the next pass once the view was garbage collected
+            if (target.mGLTextureViewWeakRef.get() == null) {
+                return false;
+            }
+
+            if (! target.mHaveEglSurface) {
+                target.mHaveEglSurface = true;
+                target.mCreateEglSurface = true;
+                target.mPendingSizeChange = true;
+            }
+
+            if (target.mSizeChanged) {
+                target.mPendingSizeChange = true;
+                target.mWantRenderNotification = true;
+                if (LOG_SURFACE) {
+                    Log.i("GLThread",
+                            "noticing that we want render notification target=" + target);
+                }
+
+                // Destroy and recreate the EGL surface.
+                target.mCreateEglSurface = true;
+
+                target.mSizeChanged = false;
+            }
+            target.mPendingWidth = target.mWidth;
+            target.mPendingHeight = target.mHeight;
+            target.mRequestRender = false;
+            sGLThreadManager.notifyAll();
+            return true;
+        }
+
+        private void guardedRun() throws InterruptedException {
+            mEglHelper = new EglHelper();
+            mHaveEglContext = false;
+            try {
+                boolean lostEglContext = false;
+
+                while (true) {
+                    RenderTarget target = null;
+                    Runnable event = null;
+                    boolean detach = false;
+                    SharedEvent sharedEvent = null;
+
+                    synchronized (sGLThreadManager) {
+                        while (true) {
+                            // Have we lost the EGL context?
+                            if (lostEglContext) {
+                                stopEglContextLocked();
+                                lostEglContext = false;
+                            }
+
+                            if (! mSharedEventQueue.isEmpty()) {
+                                sharedEvent = mSharedEventQueue.remove(0);
+                                break;
+                            }
+
+                            // Pick the next target that needs work, in round-robin order.
+                            int count = mTargets.size();
+                            for (int i = 0; i < count && target == null; i++) {
+                                int index = (mNextTarget + i) % count;
+                                RenderTarget candidate = mTargets.get(index);
+                                if (candidate.mShouldDetach || candidate.mGLTextureViewWeakRef.get() == null) {
+                                    detach = true;
+                                    target = candidate;
+                                } else if (! candidate.mEventQueue.isEmpty()) {
+                                    event = candidate.mEventQueue.remove(0);
+                                    target = candidate;
+                                } else if (prepareToDrawLocked(candidate)) {
+                                    target = candidate;
+                                }
+                                if (target != null) {
+                                    mNextTarget = index + 1;
+                                }
+                            }
+                            if (target != null) {
+                                break;
+                            }
+
+                            // When every view is paused, optionally release the EGL context:
+                            if (mHaveEglContext && shouldReleaseEglContextLocked()) {
+                                if (LOG_SURFACE) {
+                                    Log.i("GLThread", "releasing EGL context because paused tid=" + getId());
+                                }
+                                stopEglContextLocked();
+                            }
+
+                            // By design, this is the only place in the GLThread where we wait().
+                            if (LOG_THREADS) {
+                                Log.i("GLThread", "waiting tid=" + getId()
+                                        + " mHaveEglContext: " + mHaveEglContext
+                                        + " targets: " + mTargets.size());
+                            }
+                            sGLThreadManager.wait();
+                        }
+                    } // end of synchronized(sGLThreadManager)
+
+                    try {
+                        if (sharedEvent != null) {
+                            synchronized (sGLThreadManager) {
+                                startEglContextLocked(sharedEvent.mConfigChooser,
+                                        sharedEvent.mContextFactory);
+                            }
+                            if (mEglHelper.makeCurrent(null)) {
+                                sharedEvent.mRunnable.run();
+                            }
+                            continue;
+                        }
+
+                        GLTextureView view = target.mGLTextureViewWeakRef.get();
+
+                        if (detach) {
+                            if (mHaveEglContext && target.mRendererInitialized
+                                    && (mEglHelper.makeCurrent(target.mEglSurface) || mEglHelper.makeCurrent(null))) {
+                                if (LOG_RENDERER) {
+                                    Log.w("GLThread", "onSurfaceDestroyed");
+                                }
+                                target.mRenderer.onSurfaceDestroyed(target.mGl);
+                            }
+                            synchronized (sGLThreadManager) {
+                                stopEglSurfaceLocked(target);
+                                target.mRendererInitialized = false;
+                                mTargets.remove(target);
+                                target.mExited = true;
+                                sGLThreadManager.notifyAll();
+                            }
+                            continue;
+                        }
+
+                        if (event != null) {
+                            if (mHaveEglContext) {
+                                mEglHelper.makeCurrent(target.mEglSurface);
+                            }
+                            event.run();
+                            continue;
+                        }
+
+                        if (view == null) {
+                            // Collected since it was picked; detached on the next pass
+                            continue;
+                        }
+
+                        // If we don't have the shared EGL context yet, create it.
+                        synchronized (sGLThreadManager) {
+                            startEglContextLocked(view.mEGLConfigChooser, view.mEGLContextFactory);
+                        }
+
+                        if (target.mCreateEglSurface) {
+                            if (LOG_SURFACE) {
+                                Log.w("GLThread", "egl createSurface");
+                            }
+                            if (target.mEglSurface != null) {
+                                mEglHelper.destroySurface(view, target.mEglSurface);
+                            }
+                            target.mEglSurface = mEglHelper.createSurface(view);
+                            if (target.mEglSurface == null) {
+                                synchronized(sGLThreadManager) {
+                                    target.mSurfaceIsBad = true;
+                                    sGLThreadManager.notifyAll();
+                                }
+                                continue;
+                            }
+                            target.mCreateEglSurface = false;
+                        }
+
+                        /*
+                         * Before we can issue GL commands, we need to make sure
+                         * the shared context is current and bound to this view's surface.
+                         */
+                        if (!mEglHelper.makeCurrent(target.mEglSurface)) {
+                            synchronized(sGLThreadManager) {
+                                target.mSurfaceIsBad = true;
+                                sGLThreadManager.notifyAll();
+                            }
+                            continue;
+                        }
+
+                        if (target.mGl == null) {
+                            target.mGl = (GL10) mEglHelper.createGL(view);
+                        }
+                        GL10 gl = target.mGl;
+
+                        if (! target.mRendererInitialized) {
+                            if (LOG_RENDERER) {
+                                Log.w("GLThread", "onSurfaceCreated");
+                            }
+                            target.mRenderer.onSurfaceCreated(gl, mEglHelper.mEglConfig);
+                            target.mRendererInitialized = true;
+                        }
+
+                        if (target.mPendingSizeChange) {
+                            if (LOG_RENDERER) {
+                                Log.w("GLThread", "onSurfaceChanged(" + target.mPendingWidth + ", "
+                                        + target.mPendingHeight + ")");
+                            }
+                            target.mRenderer.onSurfaceChanged(gl, target.mPendingWidth, target.mPendingHeight);
+                            target.mPendingSizeChange = false;
+                        }
+
+                        if (LOG_RENDERER_DRAW_FRAME) {
+                            Log.w("GLThread", "onDrawFrame tid=" + getId());
+                        }
+                        target.mRenderer.onDrawFrame(gl);
+                        int swapError = mEglHelper.swap(target.mEglSurface);
+                        switch (swapError) {
+                            case EGL10.EGL_SUCCESS:
+                                break;
+                            case EGL11.EGL_CONTEXT_LOST:
+                                if (LOG_SURFACE) {
+                                    Log.i("GLThread", "egl context lost tid=" + getId());
+                                }
+                                lostEglContext = true;
+                                break;
+                            default:
+                                // Other errors typically mean that the current surface is bad,
+                                // probably because the TextureView surface has been destroyed,
+                                // but we haven't been notified yet.
+                                // Log the error to help developers understand why rendering stopped.
+                                EglHelper.logEglErrorAsWarning("GLThread", "eglSwapBuffers", swapError);
+
+                                synchronized(sGLThreadManager) {
+                                    target.mSurfaceIsBad = true;
+                                    sGLThreadManager.notifyAll();
+                                }
+                                break;
+                        }
+
+                        synchronized(sGLThreadManager) {
+                            if (target.mWantRenderNotification) {
+                                if (LOG_SURFACE) {
+                                    Log.i("GLThread", "sending render notification target=" + target);
+                                }
+                                target.mWantRenderNotification = false;
+                                target.mRenderComplete = true;
+                                sGLThreadManager.notifyAll();
+                            }
+                        }
+                    } catch (RuntimeException e) {
+                        // One failing view must not take down the others sharing this thread
+                        if (target == null) {
+                            Log.e("GLThread", "Shared GL event failed", e);
+                        } else {
+                            Log.e("GLThread", "Renderer failed, detaching target=" + target, e);
+                            synchronized (sGLThreadManager) {
+                                detachFailedTargetLocked(target);
+                            }
+                        }
+                    }
+                }
+
+            } finally {
+                /*
+                 * clean-up everything...
+                 */
+                synchronized (sGLThreadManager) {
+                    stopEglContextLocked();
+                }
+            }
+        }
+
+        // Once the thread is started, all accesses to the following member
+        // variables are protected by the sGLThreadManager monitor
+        private final ArrayList<RenderTarget> mTargets = new ArrayList<RenderTarget>();
+        private final ArrayList<SharedEvent> mSharedEventQueue = new ArrayList<SharedEvent>();
+        private int mNextTarget;
+        private boolean mHaveEglContext;
+
+        // End of member variables protected by the sGLThreadManager monitor.
+
+        private EglHelper mEglHelper;
+
+        /**
+         * The GLThread currently servicing every GLTextureView, or null if none
+         * has been attached yet. Protected by the sGLThreadManager monitor.
+         */
+        private static GLThread sGLThread;
+
+        private static class SharedEvent {
+            SharedEvent(EGLConfigChooser configChooser, EGLContextFactory contextFactory,
+                        Runnable runnable) {
+                mConfigChooser = configChooser;
+                mContextFactory = contextFactory;
+                mRunnable = runnable;
+            }
+
+            final EGLConfigChooser mConfigChooser;
+            final EGLContextFactory mContextFactory;
+            final Runnable mRunnable;
+        }
+
+    }
+
+    static class LogWriter extends Writer {
+
+        @Override public void close() {
+            flushBuilder();
+        }
 
         @Override public void flush() {
             flushBuilder();
@@ -1691,7 +1944,7 @@ public class GLTextureView
 
 
     private void checkRenderThreadState() {
-        if (mGLThread != null) {
+        if (mRenderTarget != null) {
             throw new IllegalStateException(
                     "setRenderer has already been called for this instance.");
         }
@@ -1704,119 +1957,24 @@ public class GLTextureView
             if (LOG_THREADS) {
                 Log.i("GLThread", "exiting tid=" +  thread.getId());
             }
-            thread.mExited = true;
-            if (mEglOwner == thread) {
-                mEglOwner = null;
+            // Views attached to a thread that died are no longer serviced; they will
+            // start a new shared thread when re-attached.
+            for (RenderTarget target : thread.mTargets) {
+                target.mExited = true;
             }
-            notifyAll();
-        }
-
-        /*
-         * Tries once to acquire the right to use an EGL
-         * context. Does not block. Requires that we are already
-         * in the sGLThreadManager monitor when this is called.
-         *
-         * @return true if the right to use an EGL context was acquired.
-         */
-        public boolean tryAcquireEglContextLocked(GLThread thread) {
-            if (mEglOwner == thread || mEglOwner == null) {
-                mEglOwner = thread;
-                notifyAll();
-                return true;
-            }
-            checkGLESVersion();
-            if (mMultipleGLESContextsAllowed) {
-                return true;
-            }
-            // Notify the owning thread that it should release the context.
-            // TODO: implement a fairness policy. Currently
-            // if the owning thread is drawing continuously it will just
-            // reacquire the EGL context.
-            if (mEglOwner != null) {
-                mEglOwner.requestReleaseEglContextLocked();
-            }
-            return false;
-        }
-
-        /*
-         * Releases the EGL context. Requires that we are already in the
-         * sGLThreadManager monitor when this is called.
-         */
-        public void releaseEglContextLocked(GLThread thread) {
-            if (mEglOwner == thread) {
-                mEglOwner = null;
+            thread.mTargets.clear();
+            if (GLThread.sGLThread == thread) {
+                GLThread.sGLThread = null;
             }
             notifyAll();
         }
-
-        public synchronized boolean shouldReleaseEGLContextWhenPausing() {
-            // Release the EGL context when pausing even if
-            // the hardware supports multiple EGL contexts.
-            // Otherwise the device could run out of EGL contexts.
-            return mLimitedGLESContexts;
-        }
-
-        public synchronized boolean shouldTerminateEGLWhenPausing() {
-            checkGLESVersion();
-            return !mMultipleGLESContextsAllowed;
-        }
-
-        public synchronized void checkGLDriver(GL10 gl) {
-            if (! mGLESDriverCheckComplete) {
-                checkGLESVersion();
-                String renderer = gl.glGetString(GL10.GL_RENDERER);
-                if (mGLESVersion < kGLES_20) {
-                    mMultipleGLESContextsAllowed =
-                            ! renderer.startsWith(kMSM7K_RENDERER_PREFIX);
-                    notifyAll();
-                }
-                mLimitedGLESContexts = !mMultipleGLESContextsAllowed;
-                if (LOG_SURFACE) {
-                    Log.w(TAG, "checkGLDriver renderer = \"" + renderer + "\" multipleContextsAllowed = "
-                            + mMultipleGLESContextsAllowed
-                            + " mLimitedGLESContexts = " + mLimitedGLESContexts);
-                }
-                mGLESDriverCheckComplete = true;
-            }
-        }
-
-        private void checkGLESVersion() {
-            if (! mGLESVersionCheckComplete) {
-//                mGLESVersion = SystemProperties.getInt(
-//                        "ro.opengles.version",
-//                        ConfigurationInfo.GL_ES_VERSION_UNDEFINED);
-//                if (mGLESVersion >= kGLES_20) {
-//                    mMultipleGLESContextsAllowed = true;
-//                }
-//                if (LOG_SURFACE) {
-//                    Log.w(TAG, "checkGLESVersion mGLESVersion =" +
-//                            " " + mGLESVersion + " mMultipleGLESContextsAllowed = " + mMultipleGLESContextsAllowed);
-//                }
-                mGLESVersionCheckComplete = true;
-            }
-        }
-
-        /**
-         * This check was required for some pre-Android-3.0 hardware. Android 3.0 provides
-         * support for hardware-accelerated views, therefore multiple EGL contexts are
-         * supported on all Android 3.0+ EGL drivers.
-         */
-        private boolean mGLESVersionCheckComplete;
-        private int mGLESVersion;
-        private boolean mGLESDriverCheckComplete;
-        private boolean mMultipleGLESContextsAllowed;
-        private boolean mLimitedGLESContexts;
-        private static final int kGLES_20 = 0x20000;
-        private static final String kMSM7K_RENDERER_PREFIX =
-                "Q3Dimension MSM7500 ";
-        private GLThread mEglOwner;
     }
 
     private static final GLThreadManager sGLThreadManager = new GLThreadManager();
 
     private final WeakReference<GLTextureView> mThisWeakRef =
             new WeakReference<GLTextureView>(this);
-    private GLThread mGLThread;
+    private RenderTarget mRenderTarget;
     private Renderer mRenderer;
     private boolean mDetached;
     private EGLConfigChooser mEGLConfigChooser;
@@ -1826,4 +1984,6 @@ public class GLTextureView
     private int mDebugFlags;
     private int mEGLContextClientVersion;
     private boolean mPreserveEGLContextOnPause;
+    private float mRenderScale = 1.0f;
+    private int mMaxRenderSize;
 }
@@ -0,0 +1,638 @@
+package com.transparentvideo;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaDataSource;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaPlayer;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link PlaybackEngine} that decodes the video track only, with {@link MediaExtractor} and
+ * {@link MediaCodec}, straight to the renderer's surface. Audio tracks are never selected or
+ * decoded, and audio focus is never requested.
+ * <p>
+ * Unlike {@link MediaPlayerEngine}, seeking with {@link MediaPlayer#SEEK_CLOSEST} is frame
+ * accurate on every API level, and loops are gapless: when the input reaches the loop end, the
+ * extractor wraps around to the loop start and keeps feeding the decoder, so the first frames
+ * of the next iteration are decoded before the current one ends. Samples are queued with
+ * timestamps that keep increasing across iterations, which lets the output side drop the
+ * frames outside the loop and schedule the rest on one continuous timeline. All extractor and
+ * codec work happens on a thread owned by the engine, in the order the methods were called.
+ * Decoders come from the {@link DecoderPool} and are returned to it when the engine is stopped,
+ * reset or released.
+ */
+public class MediaCodecEngine implements PlaybackEngine {
+    private static final String TAG = "MediaCodecEngine";
+
+    // How often the decoder is polled while it has no output ready
+    private static final long POLL_INTERVAL_MS = 5;
+    // Frames due within this window are rendered right away
+    private static final long RENDER_AHEAD_NS = 2_000_000L;
+    // Input past the loop end keeps being fed until the next sync frame, or this far at most,
+    // so that reordered frames just before the loop end can still be decoded
+    private static final long LOOP_END_LOOKAHEAD_US = 250_000L;
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final HandlerThread thread;
+    private final Handler handler;
+
+    private volatile Listener listener;
+    private volatile boolean released;
+    private volatile boolean playing;
+    private volatile long positionUs;
+    private volatile boolean hasAudio;
+
+    // Decoder thread only
+    private Source source;
+    private Surface surface;
+    private MediaExtractor extractor;
+    private MediaFormat format;
+    private long durationUs;
+    private DecoderPool.Decoder decoder;
+    private MediaCodec codec;
+    private final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+    private boolean looping;
+    private long loopStartUs = -1;
+    private long loopEndUs = -1;
+    private boolean inputDone;
+    private final SegmentTimeline timeline = new SegmentTimeline();
+    private int pendingIndex = -1;
+    private long pendingPtsUs;
+    private long pendingTimelineUs;
+    private boolean clockStarted;
+    private long clockBaseNs;
+    private long clockBaseTimelineUs;
+    private boolean seekPending;
+
+    public MediaCodecEngine() {
+        thread = new HandlerThread("TransparentVideoDecoder");
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void setSurface(final Surface surface) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                MediaCodecEngine.this.surface = surface;
+                if (codec == null || surface == null) {
+                    return;
+                }
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                    codec.setOutputSurface(surface);
+                } else {
+                    // The output surface of a running codec can only be changed from API 23
+                    long resumeUs = positionUs;
+                    releaseCodec();
+                    try {
+                        startCodec();
+                        seekLocked(resumeUs, MediaPlayer.SEEK_CLOSEST);
+                    } catch (IOException | IllegalStateException e) {
+                        fail(e);
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    public void setDataSource(final Context context, final Uri uri) {
+        setSource(new Source() {
+            @Override
+            void applyTo(MediaExtractor extractor) throws IOException {
+                extractor.setDataSource(context, uri, null);
+            }
+        });
+    }
+
+    @Override
+    public void setDataSource(final String path) {
+        setSource(new Source() {
+            @Override
+            void applyTo(MediaExtractor extractor) throws IOException {
+                extractor.setDataSource(path);
+            }
+        });
+    }
+
+    // The descriptor is duplicated, as the caller may close it before the extractor is opened
+    @Override
+    public void setDataSource(FileDescriptor fd) throws IOException {
+        final ParcelFileDescriptor dup = ParcelFileDescriptor.dup(fd);
+        setSource(new Source() {
+            @Override
+            void applyTo(MediaExtractor extractor) throws IOException {
+                extractor.setDataSource(dup.getFileDescriptor());
+            }
+
+            @Override
+            void close() {
+                Utils.closeQuietly(dup);
+            }
+        });
+    }
+
+    @Override
+    public void setDataSource(FileDescriptor fd, final long offset, final long length)
+            throws IOException {
+        final ParcelFileDescriptor dup = ParcelFileDescriptor.dup(fd);
+        setSource(new Source() {
+            @Override
+            void applyTo(MediaExtractor extractor) throws IOException {
+                extractor.setDataSource(dup.getFileDescriptor(), offset, length);
+            }
+
+            @Override
+            void close() {
+                Utils.closeQuietly(dup);
+            }
+        });
+    }
+
+    @TargetApi(23)
+    @Override
+    public void setDataSource(final MediaDataSource dataSource) {
+        setSource(new Source() {
+            @Override
+            void applyTo(MediaExtractor extractor) throws IOException {
+                extractor.setDataSource(dataSource);
+            }
+        });
+    }
+
+    private void setSource(final Source source) {
+        boolean posted = handler.post(new Runnable() {
+            @Override
+            public void run() {
+                closeSource();
+                MediaCodecEngine.this.source = source;
+            }
+        });
+        if (!posted) {
+            // Released
+            source.close();
+        }
+    }
+
+    private void closeSource() {
+        if (source != null) {
+            source.close();
+            source = null;
+        }
+    }
+
+    @Override
+    public void prepareAsync() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    open();
+                } catch (IOException | IllegalStateException | IllegalArgumentException e) {
+                    fail(e);
+                    return;
+                }
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        Listener listener = MediaCodecEngine.this.listener;
+                        if (!released && listener != null) {
+                            listener.onPrepared(MediaCodecEngine.this);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    public void start() {
+        playing = true;
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                // Frame times are measured from the first frame rendered after (re)starting
+                clockStarted = false;
+                scheduleStep(0);
+            }
+        });
+    }
+
+    @Override
+    public void pause() {
+        playing = false;
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                // A frame already dequeued is kept and rendered first when playback resumes
+                if (!seekPending) {
+                    handler.removeCallbacks(step);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void stop() {
+        playing = false;
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                close();
+            }
+        });
+    }
+
+    @Override
+    public void reset() {
+        playing = false;
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                close();
+                closeSource();
+                positionUs = 0;
+            }
+        });
+    }
+
+    @Override
+    public void release() {
+        released = true;
+        playing = false;
+        mainHandler.removeCallbacksAndMessages(null);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                close();
+                closeSource();
+                thread.quitSafely();
+            }
+        });
+    }
+
+    @Override
+    public void seekTo(final long msec, final int mode) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (codec == null) {
+                    return;
+                }
+                try {
+                    seekLocked(msec * 1000, mode);
+                } catch (IllegalStateException e) {
+                    fail(e);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void setLooping(final boolean looping) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                MediaCodecEngine.this.looping = looping;
+            }
+        });
+    }
+
+    @Override
+    public boolean setLoopRegion(final long startMs, final long endMs) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                loopStartUs = startMs >= 0 ? startMs * 1000 : -1;
+                loopEndUs = endMs >= 0 ? endMs * 1000 : -1;
+                SegmentTimeline.Segment feeding = timeline.feeding();
+                if (feeding != null) {
+                    feeding.endUs = isLoopActive() ? loopEndUs : -1;
+                }
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public long getCurrentPosition() {
+        return positionUs / 1000;
+    }
+
+    @Override
+    public boolean isPlaying() {
+        return playing;
+    }
+
+    @Override
+    public boolean hasAudio() {
+        return hasAudio;
+    }
+
+    private void open() throws IOException {
+        close();
+        if (source == null) {
+            throw new IllegalStateException("No data source");
+        }
+        extractor = new MediaExtractor();
+        source.applyTo(extractor);
+        int track = -1;
+        boolean audio = false;
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            MediaFormat trackFormat = extractor.getTrackFormat(i);
+            String mime = trackFormat.getString(MediaFormat.KEY_MIME);
+            if (mime == null) {
+                continue;
+            }
+            if (mime.startsWith("audio/")) {
+                audio = true;
+            } else if (track < 0 && mime.startsWith("video/")) {
+                track = i;
+                format = trackFormat;
+            }
+        }
+        hasAudio = audio;
+        if (track < 0) {
+            throw new IOException("No video track");
+        }
+        extractor.selectTrack(track);
+        durationUs = format.containsKey(MediaFormat.KEY_DURATION)
+                ? format.getLong(MediaFormat.KEY_DURATION) : -1;
+        startCodec();
+        positionUs = 0;
+    }
+
+    private void startCodec() throws IOException {
+        decoder = DecoderPool.acquire(format.getString(MediaFormat.KEY_MIME),
+                format.getInteger(MediaFormat.KEY_WIDTH), format.getInteger(MediaFormat.KEY_HEIGHT));
+        try {
+            decoder.configure(format, surface);
+            decoder.codec.start();
+        } catch (RuntimeException e) {
+            DecoderPool.discard(decoder);
+            decoder = null;
+            throw e;
+        }
+        codec = decoder.codec;
+        restartTimeline(-1);
+    }
+
+    /**
+     * Forgets all queued input, after the codec was started or flushed.
+     *
+     * @param dropBelowUs frames before this time are decoded but not shown, or -1.
+     */
+    private void restartTimeline(long dropBelowUs) {
+        inputDone = false;
+        pendingIndex = -1;
+        clockStarted = false;
+        timeline.restart(dropBelowUs, isLoopActive() ? loopEndUs : -1);
+    }
+
+    private void releaseCodec() {
+        handler.removeCallbacks(step);
+        if (codec != null) {
+            try {
+                codec.stop();
+                DecoderPool.recycle(decoder);
+            } catch (IllegalStateException e) {
+                // Already in the error state, not worth reusing
+                DecoderPool.discard(decoder);
+            }
+            codec = null;
+            decoder = null;
+        }
+        pendingIndex = -1;
+        seekPending = false;
+        timeline.clear();
+    }
+
+    private void close() {
+        releaseCodec();
+        if (extractor != null) {
+            extractor.release();
+            extractor = null;
+        }
+        format = null;
+    }
+
+    private void seekLocked(long timeUs, int mode) {
+        // The extractor can only seek to sync frames; exact seeks decode up to the target
+        boolean exact = mode == MediaPlayer.SEEK_CLOSEST;
+        extractor.seekTo(timeUs, exact ? MediaExtractor.SEEK_TO_PREVIOUS_SYNC : mode);
+        codec.flush();
+        restartTimeline(exact ? timeUs : -1);
+        seekPending = true;
+        // Also runs while paused, so that the frame at the new position gets displayed
+        scheduleStep(0);
+    }
+
+    private void scheduleStep(long delayMs) {
+        handler.removeCallbacks(step);
+        if (codec != null) {
+            handler.postDelayed(step, delayMs);
+        }
+    }
+
+    private final Runnable step = new Runnable() {
+        @Override
+        public void run() {
+            if (codec == null) {
+                return;
+            }
+            try {
+                long delayMs = drain();
+                if (delayMs >= 0) {
+                    handler.postDelayed(step, delayMs);
+                }
+            } catch (IllegalStateException e) {
+                fail(e);
+            }
+        }
+    };
+
+    /**
+     * Feeds the decoder and renders the frames that are due.
+     *
+     * @return the delay until the next step, or -1 if there is nothing to do until playback
+     * resumes.
+     */
+    private long drain() {
+        while (true) {
+            feedInput();
+            if (pendingIndex < 0) {
+                int index = codec.dequeueOutputBuffer(info, 0);
+                if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                    return playing || seekPending ? POLL_INTERVAL_MS : -1;
+                }
+                if (index < 0) {
+                    // Output format or buffers changed, which does not matter for a surface
+                    continue;
+                }
+                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    codec.releaseOutputBuffer(index, false);
+                    return endOfStream();
+                }
+                SegmentTimeline.Segment segment = timeline.segmentFor(info.presentationTimeUs);
+                long ptsUs = info.presentationTimeUs - segment.tagBaseUs;
+                if (!segment.shows(ptsUs)) {
+                    // Decoded only to reach a seek position or loop start, or past the loop end
+                    codec.releaseOutputBuffer(index, false);
+                    continue;
+                }
+                pendingIndex = index;
+                pendingPtsUs = ptsUs;
+                pendingTimelineUs = ptsUs + segment.timelineOffsetUs;
+            }
+
+            if (seekPending) {
+                render();
+                seekPending = false;
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        Listener listener = MediaCodecEngine.this.listener;
+                        if (!released && listener != null) {
+                            listener.onSeekComplete(MediaCodecEngine.this);
+                        }
+                    }
+                });
+                continue;
+            }
+            if (!playing) {
+                return -1;
+            }
+
+            long now = System.nanoTime();
+            if (!clockStarted) {
+                clockBaseNs = now;
+                clockBaseTimelineUs = pendingTimelineUs;
+                clockStarted = true;
+            }
+            long dueNs = clockBaseNs + (pendingTimelineUs - clockBaseTimelineUs) * 1000;
+            if (dueNs > now + RENDER_AHEAD_NS) {
+                return Math.max(1, (dueNs - now) / 1_000_000);
+            }
+            render();
+        }
+    }
+
+    private void render() {
+        codec.releaseOutputBuffer(pendingIndex, true);
+        positionUs = pendingPtsUs;
+        pendingIndex = -1;
+    }
+
+    private void feedInput() {
+        while (!inputDone) {
+            int index = codec.dequeueInputBuffer(0);
+            if (index < 0) {
+                return;
+            }
+            long sampleTimeUs = extractor.getSampleTime();
+            if (isLoopActive() && isPastLoopEnd(sampleTimeUs)) {
+                wrapAround();
+                sampleTimeUs = extractor.getSampleTime();
+                if (isPastLoopEnd(sampleTimeUs)) {
+                    // Empty loop region, play on instead of spinning
+                    Log.w(TAG, "Nothing to play between the loop start and end");
+                    loopStartUs = -1;
+                    looping = false;
+                }
+            }
+            ByteBuffer buffer = codec.getInputBuffer(index);
+            int size = sampleTimeUs < 0 ? -1 : extractor.readSampleData(buffer, 0);
+            if (size < 0) {
+                codec.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                inputDone = true;
+            } else {
+                codec.queueInputBuffer(index, 0, size, timeline.tag(sampleTimeUs), 0);
+                extractor.advance();
+            }
+        }
+    }
+
+    private boolean isLoopActive() {
+        return looping || loopStartUs >= 0;
+    }
+
+    private boolean isPastLoopEnd(long sampleTimeUs) {
+        if (sampleTimeUs < 0) {
+            return true;
+        }
+        long endUs = timeline.feeding().endUs;
+        if (endUs < 0 || sampleTimeUs < endUs) {
+            return false;
+        }
+        boolean sync = (extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0;
+        return sync || sampleTimeUs >= endUs + LOOP_END_LOOKAHEAD_US;
+    }
+
+    /**
+     * Continues the input at the loop start, without flushing the decoder. The new segment is
+     * tagged above everything queued so far and placed right after the loop end on the
+     * playback timeline.
+     */
+    private void wrapAround() {
+        long startUs = Math.max(loopStartUs, 0);
+        extractor.seekTo(startUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        timeline.wrapAround(startUs, loopEndUs, durationUs);
+    }
+
+    private long endOfStream() {
+        playing = false;
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Listener listener = MediaCodecEngine.this.listener;
+                if (!released && listener != null) {
+                    listener.onCompletion(MediaCodecEngine.this);
+                }
+            }
+        });
+        return -1;
+    }
+
+    private void fail(Exception e) {
+        Log.e(TAG, "Playback failed: " + e.getMessage(), e);
+        playing = false;
+        close();
+        final int extra = e instanceof IOException ? MediaPlayer.MEDIA_ERROR_IO : 0;
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Listener listener = MediaCodecEngine.this.listener;
+                if (!released && listener != null) {
+                    listener.onError(MediaCodecEngine.this, MediaPlayer.MEDIA_ERROR_UNKNOWN, extra);
+                }
+            }
+        });
+    }
+
+    private abstract static class Source {
+        abstract void applyTo(MediaExtractor extractor) throws IOException;
+
+        void close() {
+        }
+    }
+}
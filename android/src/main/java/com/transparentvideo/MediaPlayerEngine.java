@@ -0,0 +1,452 @@
+package com.transparentvideo;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.media.MediaDataSource;
+import android.media.MediaPlayer;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+
+/**
+ * {@link PlaybackEngine} backed by {@link MediaPlayer}, with audio. This is the default engine.
+ * <p>
+ * Calls like {@code setDataSource} and {@code reset} can block for many milliseconds, so every
+ * player is created and controlled on a playback thread shared by all engines, in the order
+ * the methods were called. The player's callbacks arrive on that thread too; only the
+ * resulting state changes are posted to the main thread.
+ */
+public class MediaPlayerEngine implements PlaybackEngine {
+    private static final String TAG = "MediaPlayerEngine";
+
+    private static Handler playbackHandler;
+
+    private final Handler handler = getPlaybackHandler();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private volatile MediaPlayer mediaPlayer;
+    private volatile Listener listener;
+    private volatile boolean released;
+    private volatile boolean playing;
+    private volatile boolean looping;
+    // Bumped on the main thread by each reset; callbacks of older generations are dropped
+    private int generation;
+    // The generation the player is in, on the playback thread
+    private volatile int playerGeneration;
+
+    // MediaPlayer is not thread-safe, so its state is only read on the playback thread, into
+    // this snapshot; the position is extrapolated while playing
+    private final Object snapshotLock = new Object();
+    private long positionMs;
+    private long positionUptimeMs;
+    private boolean advancing;
+    private long durationMs;
+    private volatile boolean hasAudio;
+
+    public MediaPlayerEngine() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                // The player delivers its callbacks on the looper of the thread creating it
+                mediaPlayer = createMediaPlayer();
+            }
+        });
+    }
+
+    private static synchronized Handler getPlaybackHandler() {
+        if (playbackHandler == null) {
+            HandlerThread thread = new HandlerThread("TransparentVideoPlayback");
+            thread.start();
+            playbackHandler = new Handler(thread.getLooper());
+        }
+        return playbackHandler;
+    }
+
+    private MediaPlayer createMediaPlayer() {
+        MediaPlayer mediaPlayer = new MediaPlayer();
+        mediaPlayer.setOnPreparedListener(new MediaPlayer.OnPreparedListener() {
+            @Override
+            public void onPrepared(MediaPlayer mp) {
+                hasAudio = findAudioTrack(mp);
+                synchronized (snapshotLock) {
+                    durationMs = mp.getDuration();
+                }
+                snapshot(mp);
+                postToListener(new ListenerCall() {
+                    @Override
+                    void call(Listener listener) {
+                        listener.onPrepared(MediaPlayerEngine.this);
+                    }
+                });
+            }
+        });
+        mediaPlayer.setOnCompletionListener(new MediaPlayer.OnCompletionListener() {
+            @Override
+            public void onCompletion(MediaPlayer mp) {
+                playing = false;
+                snapshot(mp);
+                postToListener(new ListenerCall() {
+                    @Override
+                    void call(Listener listener) {
+                        listener.onCompletion(MediaPlayerEngine.this);
+                    }
+                });
+            }
+        });
+        mediaPlayer.setOnSeekCompleteListener(new MediaPlayer.OnSeekCompleteListener() {
+            @Override
+            public void onSeekComplete(MediaPlayer mp) {
+                snapshot(mp);
+                postToListener(new ListenerCall() {
+                    @Override
+                    void call(Listener listener) {
+                        listener.onSeekComplete(MediaPlayerEngine.this);
+                    }
+                });
+            }
+        });
+        mediaPlayer.setOnErrorListener(new MediaPlayer.OnErrorListener() {
+            @Override
+            public boolean onError(MediaPlayer mp, int what, int extra) {
+                postError(what, extra);
+                return true;
+            }
+        });
+        return mediaPlayer;
+    }
+
+    /**
+     * @return the underlying player, which is created and used on the playback thread; only
+     * call methods that are safe to use concurrently, or post them to that thread.
+     */
+    public MediaPlayer getMediaPlayer() {
+        return mediaPlayer;
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void setSurface(final Surface surface) {
+        post(new PlayerCall() {
+            @Override
+            void call(MediaPlayer mediaPlayer) {
+                mediaPlayer.setSurface(surface);
+            }
+        });
+    }
+
+    @Override
+    public void setDataSource(final Context context, final Uri uri) {
+        post(new PlayerCall() {
+            @Override
+            void call(MediaPlayer mediaPlayer) throws IOException {
+                mediaPlayer.setDataSource(context, uri);
+            }
+        });
+    }
+
+    @Override
+    public void setDataSource(final String path) {
+        post(new PlayerCall() {
+            @Override
+            void call(MediaPlayer mediaPlayer) throws IOException {
+                mediaPlayer.setDataSource(path);
+            }
+        });
+    }
+
+    // The descriptor is duplicated, as the caller may close it before the call runs; the
+    // player keeps its own copy once set
+    @Override
+    public void setDataSource(FileDescriptor fd) throws IOException {
+        final ParcelFileDescriptor dup = ParcelFileDescriptor.dup(fd);
+        post(new PlayerCall() {
+            @Override
+            void call(MediaPlayer mediaPlayer) throws IOException {
+                mediaPlayer.setDataSource(dup.getFileDescriptor());
+            }
+
+            @Override
+            void done() {
+                Utils.closeQuietly(dup);
+            }
+        });
+    }
+
+    @Override
+    public void setDataSource(FileDescriptor fd, final long offset, final long length)
+            throws IOException {
+        final ParcelFileDescriptor dup = ParcelFileDescriptor.dup(fd);
+        post(new PlayerCall() {
+            @Override
+            void call(MediaPlayer mediaPlayer) throws IOException {
+                mediaPlayer.setDataSource(dup.getFileDescriptor(), offset, length);
+            }
+
+            @Override
+            void done() {
+                Utils.closeQuietly(dup);
+            }
+        });
+    }
+
+    @TargetApi(23)
+    @Override
+    public void setDataSource(final MediaDataSource dataSource) {
+        post(new PlayerCall() {
+            @Override
+            void call(MediaPlayer mediaPlayer) {
+                mediaPlayer.setDataSource(dataSource);
+            }
+        });
+    }
+
+    @Override
+    public void prepareAsync() {
+        post(new PlayerCall() {
+            @Override
+            void call(MediaPlayer mediaPlayer) {
+                mediaPlayer.prepareAsync();
+            }
+        });
+    }
+
+    @Override
+    public void start() {
+        playing = true;
+        post(new PlayerCall() {
+            @Override
+            void call(MediaPlayer mediaPlayer) {
+                mediaPlayer.start();
+                snapshot(mediaPlayer);
+            }
+        });
+    }
+
+    @Override
+    public void pause() {
+        playing = false;
+        post(new PlayerCall() {
+            @Override
+            void call(MediaPlayer mediaPlayer) {
+                mediaPlayer.pause();
+                snapshot(mediaPlayer);
+            }
+        });
+    }
+
+    @Override
+    public void stop() {
+        playing = false;
+        post(new PlayerCall() {
+            @Override
+            void call(MediaPlayer mediaPlayer) {
+                mediaPlayer.stop();
+                snapshot(mediaPlayer);
+            }
+        });
+    }
+
+    @Override
+    public void reset() {
+        playing = false;
+        final int next = ++generation;
+        post(new PlayerCall() {
+            @Override
+            void call(MediaPlayer mediaPlayer) {
+                mediaPlayer.reset();
+                playerGeneration = next;
+                hasAudio = false;
+                synchronized (snapshotLock) {
+                    durationMs = 0;
+                }
+                snapshot(mediaPlayer);
+            }
+        });
+    }
+
+    @Override
+    public void release() {
+        released = true;
+        playing = false;
+        mainHandler.removeCallbacksAndMessages(null);
+        post(new PlayerCall() {
+            @Override
+            void call(MediaPlayer mediaPlayer) {
+                mediaPlayer.release();
+                MediaPlayerEngine.this.mediaPlayer = null;
+            }
+        });
+    }
+
+    @Override
+    public void seekTo(final long msec, final int mode) {
+        post(new PlayerCall() {
+            @Override
+            void call(MediaPlayer mediaPlayer) {
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                    mediaPlayer.seekTo(msec, mode);
+                } else {
+                    mediaPlayer.seekTo((int) msec);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void setLooping(final boolean looping) {
+        this.looping = looping;
+        post(new PlayerCall() {
+            @Override
+            void call(MediaPlayer mediaPlayer) {
+                mediaPlayer.setLooping(looping);
+            }
+        });
+    }
+
+    @Override
+    public boolean setLoopRegion(long startMs, long endMs) {
+        // MediaPlayer can only loop the whole video
+        return false;
+    }
+
+    public void setScreenOnWhilePlaying(final boolean screenOn) {
+        post(new PlayerCall() {
+            @Override
+            void call(MediaPlayer mediaPlayer) {
+                mediaPlayer.setScreenOnWhilePlaying(screenOn);
+            }
+        });
+    }
+
+    @Override
+    public long getCurrentPosition() {
+        if (released) {
+            return 0;
+        }
+        synchronized (snapshotLock) {
+            long position = positionMs;
+            if (advancing) {
+                position += SystemClock.uptimeMillis() - positionUptimeMs;
+                if (durationMs > 0 && position > durationMs) {
+                    position = looping ? position % durationMs : durationMs;
+                }
+            }
+            return position;
+        }
+    }
+
+    // Playback thread only
+    private void snapshot(MediaPlayer mediaPlayer) {
+        long position;
+        boolean advancing;
+        try {
+            position = mediaPlayer.getCurrentPosition();
+            advancing = mediaPlayer.isPlaying();
+        } catch (IllegalStateException e) {
+            // No source
+            position = 0;
+            advancing = false;
+        }
+        synchronized (snapshotLock) {
+            positionMs = position;
+            positionUptimeMs = SystemClock.uptimeMillis();
+            this.advancing = advancing;
+        }
+    }
+
+    @Override
+    public boolean isPlaying() {
+        return playing;
+    }
+
+    @Override
+    public boolean hasAudio() {
+        return hasAudio;
+    }
+
+    // Playback thread only
+    private static boolean findAudioTrack(MediaPlayer mediaPlayer) {
+        try {
+            for (MediaPlayer.TrackInfo track : mediaPlayer.getTrackInfo()) {
+                if (track.getTrackType() == MediaPlayer.TrackInfo.MEDIA_TRACK_TYPE_AUDIO) {
+                    return true;
+                }
+            }
+        } catch (IllegalStateException e) {
+            // Not prepared
+        }
+        return false;
+    }
+
+    private void post(final PlayerCall call) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                MediaPlayer mediaPlayer = MediaPlayerEngine.this.mediaPlayer;
+                if (mediaPlayer == null) {
+                    call.done();
+                    return;
+                }
+                try {
+                    call.call(mediaPlayer);
+                } catch (IOException | IllegalStateException | IllegalArgumentException e) {
+                    Log.e(TAG, e.getMessage(), e);
+                    playing = false;
+                    postError(MediaPlayer.MEDIA_ERROR_UNKNOWN,
+                            e instanceof IOException ? MediaPlayer.MEDIA_ERROR_IO : 0);
+                } finally {
+                    call.done();
+                }
+            }
+        });
+    }
+
+    private void postError(final int what, final int extra) {
+        playing = false;
+        postToListener(new ListenerCall() {
+            @Override
+            void call(Listener listener) {
+                listener.onError(MediaPlayerEngine.this, what, extra);
+            }
+        });
+    }
+
+    // Called on the playback thread
+    private void postToListener(final ListenerCall call) {
+        final int callGeneration = playerGeneration;
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Listener listener = MediaPlayerEngine.this.listener;
+                // Callbacks for the previous source must not reach the next one
+                if (!released && listener != null && callGeneration == generation) {
+                    call.call(listener);
+                }
+            }
+        });
+    }
+
+    private abstract static class PlayerCall {
+        abstract void call(MediaPlayer mediaPlayer) throws IOException;
+
+        // Runs after the call, or instead of it once the player is released
+        void done() {
+        }
+    }
+
+    private abstract static class ListenerCall {
+        abstract void call(Listener listener);
+    }
+}
@@ -0,0 +1,205 @@
+package com.transparentvideo;
+
+import android.content.Context;
+import android.media.MediaMetadataRetriever;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Extracts the size, rotation and duration of videos off the main thread, and caches them in
+ * memory and under the app's cache dir, so a view mounting a known video can size itself
+ * right away without touching the file.
+ * <p>
+ * Only sources with a {@link VideoSource#key} are cached; the others are extracted every time.
+ * Concurrent requests for the same key share a single extraction, e.g. when several views
+ * mount with the same sticker at once. Only the probe is shared: each view still prepares its
+ * own decoder, unless it shares one through a {@link SharedVideoStream}.
+ */
+final class MetadataCache {
+    private static final String TAG = "MetadataCache";
+
+    private static final String DIRECTORY_NAME = "transparent-video-metadata";
+    private static final int FILE_MAGIC = 0x54564d44; // "TVMD"
+    private static final int MEMORY_CACHE_SIZE = 64;
+
+    private static final LruCache<String, Metadata> memoryCache = new LruCache<>(MEMORY_CACHE_SIZE);
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // Callbacks waiting for an extraction in progress, by key; main thread only
+    private static final SingleFlight<Callback> pending = new SingleFlight<>();
+    // Extraction may fetch remote videos, so one slow source must not hold up all the others
+    private static final ExecutorService executor = Executors.newFixedThreadPool(2, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, "TransparentVideoMetadata");
+        }
+    });
+
+    private MetadataCache() {
+    }
+
+    interface Callback {
+        /**
+         * @param metadata the metadata of the video, or null if it could not be read.
+         */
+        void onMetadata(Metadata metadata);
+    }
+
+    /**
+     * Delivers the metadata of a source on the main thread: right away if it is cached in
+     * memory, otherwise once it was read from disk or extracted from the video. Must be called
+     * on the main thread.
+     */
+    static void get(Context context, final VideoSource source, final Callback callback) {
+        final String key = source.key;
+        Metadata cached = key != null ? memoryCache.get(key) : null;
+        if (cached != null) {
+            callback.onMetadata(cached);
+            return;
+        }
+        final SingleFlight.Flight<Callback> flight = pending.join(key, callback);
+        if (flight == null) {
+            return;
+        }
+        // Keeps the file of the source open until the extraction finished
+        final boolean retained = source.retain();
+        final Context applicationContext = context.getApplicationContext();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Metadata metadata = key != null ? read(applicationContext, key) : null;
+                if (metadata == null && retained) {
+                    metadata = extract(source);
+                    if (metadata != null && key != null) {
+                        write(applicationContext, key, metadata);
+                    }
+                }
+                if (retained) {
+                    source.release();
+                }
+                if (metadata != null && key != null) {
+                    memoryCache.put(key, metadata);
+                }
+                final Metadata result = metadata;
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        pending.finish(flight);
+                        for (Callback callback : flight.callbacks) {
+                            callback.onMetadata(result);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private static Metadata extract(VideoSource source) {
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            source.applyTo(retriever);
+            return new Metadata(
+                    parseInt(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH)),
+                    parseInt(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_HEIGHT)),
+                    parseInt(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_ROTATION)),
+                    parseInt(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION)));
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Could not extract metadata: " + e.getMessage(), e);
+            return null;
+        } finally {
+            try {
+                retriever.release();
+            } catch (IOException e) {
+                // Nothing left to clean up
+            }
+        }
+    }
+
+    private static int parseInt(String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static Metadata read(Context context, String key) {
+        File file = fileFor(context, key);
+        if (file == null || !file.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            if (in.readInt() != FILE_MAGIC) {
+                throw new IOException("Unknown file format");
+            }
+            return new Metadata(in.readInt(), in.readInt(), in.readInt(), in.readInt());
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read metadata " + file.getName() + ": " + e.getMessage());
+            file.delete();
+            return null;
+        }
+    }
+
+    private static void write(Context context, String key, Metadata metadata) {
+        File file = fileFor(context, key);
+        if (file == null) {
+            return;
+        }
+        File directory = file.getParentFile();
+        File temp = new File(directory, file.getName() + ".tmp");
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Could not create " + directory);
+            }
+            try (DataOutputStream out = new DataOutputStream(new FileOutputStream(temp))) {
+                out.writeInt(FILE_MAGIC);
+                out.writeInt(metadata.width);
+                out.writeInt(metadata.height);
+                out.writeInt(metadata.rotation);
+                out.writeInt(metadata.durationMs);
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("Could not rename " + temp);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not store metadata: " + e.getMessage());
+            temp.delete();
+        }
+    }
+
+    private static File fileFor(Context context, String key) {
+        String hash = Utils.sha1(key);
+        if (hash == null) {
+            return null;
+        }
+        return new File(new File(context.getCacheDir(), DIRECTORY_NAME), hash + ".bin");
+    }
+
+    static final class Metadata {
+        final int width;
+        final int height;
+        final int rotation;
+        final int durationMs;
+
+        Metadata(int width, int height, int rotation, int durationMs) {
+            this.width = width;
+            this.height = height;
+            this.rotation = rotation;
+            this.durationMs = durationMs;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.transparentvideo;
+
+import android.content.Context;
+import android.media.MediaDataSource;
+import android.net.Uri;
+import android.view.Surface;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+
+/**
+ * Decodes a video into the {@link Surface} of an {@link AlphaMovieView}.
+ * <p>
+ * The lifecycle follows {@link android.media.MediaPlayer}: set a data source, call
+ * {@link #prepareAsync()}, then {@link #start()} once {@link Listener#onPrepared} was called.
+ * After {@link #stop()} the engine must be prepared again, after {@link #reset()} it needs a
+ * new data source. Methods are called from the main thread and must not block it, so
+ * implementations do their work on a thread of their own and report failures through
+ * {@link Listener#onError}. Listener callbacks are delivered on the main thread.
+ */
+public interface PlaybackEngine {
+
+    interface Listener {
+        void onPrepared(PlaybackEngine engine);
+
+        void onCompletion(PlaybackEngine engine);
+
+        void onSeekComplete(PlaybackEngine engine);
+
+        /**
+         * @param what  one of the {@code MediaPlayer.MEDIA_ERROR_*} constants
+         * @param extra an implementation specific code
+         */
+        void onError(PlaybackEngine engine, int what, int extra);
+    }
+
+    void setListener(Listener listener);
+
+    /**
+     * Sets the surface that receives the decoded frames. The engine does not take ownership
+     * of the surface; it must stay valid until it is replaced or the engine is released.
+     */
+    void setSurface(Surface surface);
+
+    void setDataSource(Context context, Uri uri) throws IOException;
+
+    void setDataSource(String path) throws IOException;
+
+    void setDataSource(FileDescriptor fd) throws IOException;
+
+    void setDataSource(FileDescriptor fd, long offset, long length) throws IOException;
+
+    void setDataSource(MediaDataSource dataSource);
+
+    void prepareAsync();
+
+    void start();
+
+    void pause();
+
+    void stop();
+
+    void reset();
+
+    void release();
+
+    /**
+     * @param mode one of the {@code MediaPlayer.SEEK_*} constants
+     */
+    void seekTo(long msec, int mode);
+
+    void setLooping(boolean looping);
+
+    /**
+     * Loops between the given points instead of over the whole video. Playback continues at
+     * {@code startMs} once {@code endMs} is reached, or the end of the video if {@code endMs} is
+     * -1. A {@code startMs} of -1 clears the loop region.
+     *
+     * @return false if the engine cannot loop a region itself, in which case the caller has to
+     * seek back when the loop end is reached.
+     */
+    boolean setLoopRegion(long startMs, long endMs);
+
+    long getCurrentPosition();
+
+    boolean isPlaying();
+
+    /**
+     * @return whether the source contains an audio track, whether or not it is played. Only
+     * valid once {@link Listener#onPrepared} was called.
+     */
+    boolean hasAudio();
+}
@@ -0,0 +1,194 @@
+package com.transparentvideo;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.MediaMetadataRetriever;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Keeps the first frame of each video in memory and under the app's cache dir, so a view
+ * draws it as a poster as soon as it mounts, instead of nothing until its decoder is prepared
+ * or granted by the {@link DecoderBudget}.
+ * <p>
+ * Posters are full decoded frames, i.e. still packed, and are composited by the same program
+ * as live frames, so packing layouts, atlas cells and custom shaders apply to them as well.
+ * They are stored as PNG, as lossy compression would bleed into the alpha plane. Only sources
+ * with a {@link VideoSource#key} have posters. Main thread only.
+ */
+final class PosterCache {
+    private static final String TAG = "PosterCache";
+
+    private static final String DIRECTORY_NAME = "transparent-video-posters";
+
+    // In kilobytes; first frames are large, so the cache holds only a handful of them
+    private static final LruCache<String, Bitmap> memoryCache =
+            new LruCache<String, Bitmap>((int) (Runtime.getRuntime().maxMemory() / 1024 / 16)) {
+                @Override
+                protected int sizeOf(String key, Bitmap bitmap) {
+                    return bitmap.getByteCount() / 1024;
+                }
+            };
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // Callbacks waiting for an extraction in progress, by key
+    private static final SingleFlight<Callback> pending = new SingleFlight<>();
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, "TransparentVideoPoster");
+        }
+    });
+
+    private PosterCache() {
+    }
+
+    interface Callback {
+        /**
+         * @param poster the first frame of the video, or null if it could not be decoded.
+         */
+        void onPoster(Bitmap poster);
+    }
+
+    /**
+     * @return the first frame of the source if it is cached in memory, otherwise null.
+     */
+    static Bitmap getCached(VideoSource source) {
+        return source.key != null ? memoryCache.get(source.key) : null;
+    }
+
+    /**
+     * Delivers the first frame of a source on the main thread: right away if it is cached in
+     * memory, otherwise once it was read from disk or decoded from the video.
+     */
+    static void get(Context context, final VideoSource source, Callback callback) {
+        final String key = source.key;
+        if (key == null) {
+            callback.onPoster(null);
+            return;
+        }
+        Bitmap cached = memoryCache.get(key);
+        if (cached != null) {
+            callback.onPoster(cached);
+            return;
+        }
+        final SingleFlight.Flight<Callback> flight = pending.join(key, callback);
+        if (flight == null) {
+            return;
+        }
+        // Keeps the file of the source open until the extraction finished
+        final boolean retained = source.retain();
+        final Context applicationContext = context.getApplicationContext();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Bitmap bitmap = read(applicationContext, key);
+                if (bitmap == null && retained) {
+                    bitmap = extract(source);
+                    if (bitmap != null) {
+                        write(applicationContext, key, bitmap);
+                    }
+                }
+                if (retained) {
+                    source.release();
+                }
+                final Bitmap poster = bitmap;
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // Not cached if evicted in the meantime
+                        if (pending.finish(flight) && poster != null) {
+                            memoryCache.put(key, poster);
+                        }
+                        for (Callback callback : flight.callbacks) {
+                            callback.onPoster(poster);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Drops the poster of a source from memory. It stays on disk.
+     */
+    static void evict(VideoSource source) {
+        if (source.key != null) {
+            pending.forget(source.key);
+            memoryCache.remove(source.key);
+        }
+    }
+
+    private static Bitmap read(Context context, String key) {
+        File file = fileFor(context, key);
+        if (file == null || !file.exists()) {
+            return null;
+        }
+        Bitmap bitmap = BitmapFactory.decodeFile(file.getPath());
+        if (bitmap == null) {
+            Log.w(TAG, "Could not read poster " + file.getName());
+            file.delete();
+        }
+        return bitmap;
+    }
+
+    private static void write(Context context, String key, Bitmap bitmap) {
+        File file = fileFor(context, key);
+        if (file == null) {
+            return;
+        }
+        File directory = file.getParentFile();
+        File temp = new File(directory, file.getName() + ".tmp");
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Could not create " + directory);
+            }
+            try (OutputStream out = new FileOutputStream(temp)) {
+                if (!bitmap.compress(Bitmap.CompressFormat.PNG, 100, out)) {
+                    throw new IOException("Could not encode " + temp);
+                }
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("Could not rename " + temp);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not store poster: " + e.getMessage());
+            temp.delete();
+        }
+    }
+
+    private static File fileFor(Context context, String key) {
+        String hash = Utils.sha1(key);
+        if (hash == null) {
+            return null;
+        }
+        return new File(new File(context.getCacheDir(), DIRECTORY_NAME), hash + ".png");
+    }
+
+    private static Bitmap extract(VideoSource source) {
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            source.applyTo(retriever);
+            return retriever.getFrameAtTime(0, MediaMetadataRetriever.OPTION_CLOSEST_SYNC);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Could not decode the first frame: " + e.getMessage(), e);
+            return null;
+        } finally {
+            try {
+                retriever.release();
+            } catch (IOException e) {
+                // Nothing left to clean up
+            }
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package com.transparentvideo;
+
+import android.content.Context;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * On-disk cache of linked program binaries, so cold starts do not pay for shader compilation.
+ * <p>
+ * Binaries are stored under the app's cache dir and keyed by a hash of the shader sources, the
+ * GL renderer and the GL version, since a binary is only valid for the driver that produced it.
+ * Only contexts reporting OpenGL ES 3.0 or later use the cache: Android has no Java bindings
+ * for OES_get_program_binary on ES 2.0. All GL methods must be called on the shared GL thread.
+ * <p>
+ * The GL thread never touches the disk: stored binaries are read into memory on a background
+ * thread as soon as the cache is initialized, and new binaries are written there as well.
+ */
+final class ProgramBinaryCache {
+    private static final String TAG = "ProgramBinaryCache";
+
+    private static final String DIRECTORY_NAME = "transparent-video-shaders";
+    private static final String FILE_SUFFIX = ".bin";
+    private static final int FILE_MAGIC = 0x54565042; // "TVPB"
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, "TransparentVideoShaders");
+        }
+    });
+    // Binaries read from or written to disk, by hash; guarded by itself
+    private static final Map<String, Binary> binaries = new HashMap<>();
+
+    private static Context applicationContext;
+    private static Boolean supported;
+
+    private ProgramBinaryCache() {
+    }
+
+    /**
+     * Gives the cache access to the app's cache dir and starts reading the stored binaries.
+     * Cheap to call repeatedly.
+     */
+    static synchronized void init(Context context) {
+        if (applicationContext == null && context != null) {
+            applicationContext = context.getApplicationContext();
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    readAll();
+                }
+            });
+        }
+    }
+
+    /**
+     * Runs a task once the stored binaries have been read, so that programs compiled by it
+     * can be created from them. Runs it right away if the cache was never initialized.
+     */
+    static void runWhenLoaded(Runnable task) {
+        if (directory() == null) {
+            task.run();
+        } else {
+            executor.execute(task);
+        }
+    }
+
+    /**
+     * Creates a program from a previously stored binary.
+     *
+     * @return the linked program, or 0 if there is no binary, it has not been read yet or the
+     * driver rejected it.
+     */
+    static synchronized int load(String vertexSource, String fragmentSource) {
+        final String hash = hashFor(vertexSource, fragmentSource);
+        if (hash == null) {
+            return 0;
+        }
+        Binary binary;
+        synchronized (binaries) {
+            binary = binaries.get(hash);
+        }
+        if (binary == null) {
+            return 0;
+        }
+
+        int program = GLES20.glCreateProgram();
+        if (program == 0) {
+            return 0;
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(binary.data.length).order(ByteOrder.nativeOrder());
+        buffer.put(binary.data).position(0);
+        GLES30.glProgramBinary(program, binary.format, buffer, binary.data.length);
+        int[] linkStatus = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
+        if (linkStatus[0] != GLES20.GL_TRUE) {
+            // Drivers may reject binaries at any time, e.g. after an update. A rejected format
+            // raises a GL error, which must not surface in the next unrelated error check.
+            while (GLES20.glGetError() != GLES20.GL_NO_ERROR) {
+                // Drain
+            }
+            Log.w(TAG, "Driver rejected program binary " + hash);
+            GLES20.glDeleteProgram(program);
+            synchronized (binaries) {
+                binaries.remove(hash);
+            }
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    File file = fileFor(hash);
+                    if (file != null) {
+                        file.delete();
+                    }
+                }
+            });
+            return 0;
+        }
+        return program;
+    }
+
+    /**
+     * Asks the driver to keep the binary of a program retrievable. Must be called before the
+     * program is linked.
+     */
+    static synchronized void prepareForLink(int program) {
+        if (isSupported()) {
+            GLES30.glProgramParameteri(program, GLES30.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GLES20.GL_TRUE);
+        }
+    }
+
+    /**
+     * Stores the binary of a freshly linked program.
+     */
+    static synchronized void store(int program, String vertexSource, String fragmentSource) {
+        final String hash = hashFor(vertexSource, fragmentSource);
+        if (hash == null) {
+            return;
+        }
+        int[] length = new int[1];
+        GLES20.glGetProgramiv(program, GLES30.GL_PROGRAM_BINARY_LENGTH, length, 0);
+        if (length[0] <= 0) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(length[0]).order(ByteOrder.nativeOrder());
+        int[] written = new int[1];
+        int[] format = new int[1];
+        GLES30.glGetProgramBinary(program, length[0], written, 0, format, 0, buffer);
+        if (GLES20.glGetError() != GLES20.GL_NO_ERROR || written[0] <= 0) {
+            return;
+        }
+        byte[] data = new byte[written[0]];
+        buffer.position(0);
+        buffer.get(data);
+
+        final Binary binary = new Binary(format[0], data);
+        synchronized (binaries) {
+            binaries.put(hash, binary);
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                write(hash, binary);
+            }
+        });
+    }
+
+    private static void readAll() {
+        File directory = directory();
+        File[] files = directory != null ? directory.listFiles() : null;
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(FILE_SUFFIX)) {
+                continue;
+            }
+            Binary binary = read(file);
+            if (binary == null) {
+                continue;
+            }
+            String hash = name.substring(0, name.length() - FILE_SUFFIX.length());
+            synchronized (binaries) {
+                // A binary stored by the GL thread in the meantime is newer
+                if (!binaries.containsKey(hash)) {
+                    binaries.put(hash, binary);
+                }
+            }
+        }
+    }
+
+    private static Binary read(File file) {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            if (in.readInt() != FILE_MAGIC) {
+                throw new IOException("Unknown file format");
+            }
+            int format = in.readInt();
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            return new Binary(format, data);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read program binary " + file.getName() + ": " + e.getMessage());
+            file.delete();
+            return null;
+        }
+    }
+
+    private static void write(String hash, Binary binary) {
+        File file = fileFor(hash);
+        if (file == null) {
+            return;
+        }
+        File directory = file.getParentFile();
+        File temp = new File(directory, file.getName() + ".tmp");
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Could not create " + directory);
+            }
+            try (DataOutputStream out = new DataOutputStream(new FileOutputStream(temp))) {
+                out.writeInt(FILE_MAGIC);
+                out.writeInt(binary.format);
+                out.writeInt(binary.data.length);
+                out.write(binary.data);
+            }
+            // Never leave a truncated binary behind for the next launch
+            if (!temp.renameTo(file)) {
+                throw new IOException("Could not rename " + temp);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not store program binary: " + e.getMessage());
+            temp.delete();
+        }
+    }
+
+    private static boolean isSupported() {
+        if (supported == null) {
+            int[] formats = new int[1];
+            if (GLInfo.isGles3()) {
+                GLES20.glGetIntegerv(GLES30.GL_NUM_PROGRAM_BINARY_FORMATS, formats, 0);
+            }
+            supported = formats[0] > 0;
+        }
+        return supported;
+    }
+
+    // Must be called on the GL thread, as the hash covers the driver
+    private static String hashFor(String vertexSource, String fragmentSource) {
+        if (applicationContext == null || !isSupported()) {
+            return null;
+        }
+        return Utils.sha1(vertexSource + '\0' + fragmentSource + '\0' + GLInfo.getDriverKey());
+    }
+
+    private static File directory() {
+        Context context;
+        synchronized (ProgramBinaryCache.class) {
+            context = applicationContext;
+        }
+        return context != null ? new File(context.getCacheDir(), DIRECTORY_NAME) : null;
+    }
+
+    private static File fileFor(String hash) {
+        File directory = directory();
+        return directory != null ? new File(directory, hash + FILE_SUFFIX) : null;
+    }
+
+    private static class Binary {
+        final int format;
+        final byte[] data;
+
+        Binary(int format, byte[] data) {
+            this.format = format;
+            this.data = data;
+        }
+    }
+}
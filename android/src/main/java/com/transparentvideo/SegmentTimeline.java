@@ -0,0 +1,107 @@
+package com.transparentvideo;
+
+import java.util.ArrayDeque;
+
+/**
+ * Tracks the input queued to a decoder as {@link Segment}s, so that frames coming out of it
+ * can be placed on one continuous playback timeline across seeks and loop wraps.
+ * <p>
+ * Sample times are tagged with the base of the segment they were fed in before they are
+ * queued. Each wrap starts a segment tagged above everything queued so far, so tags keep
+ * increasing even though the sample times jump back to the loop start. Not thread-safe; used
+ * on the decoder thread of a {@link MediaCodecEngine}.
+ */
+final class SegmentTimeline {
+    // Oldest first; the last one is being fed
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private long maxQueuedTagUs = -1;
+
+    /**
+     * Forgets all queued input and starts feeding from the beginning of the timeline.
+     *
+     * @param dropBelowUs frames before this time are decoded but not shown, or -1.
+     * @param endUs       frames from this time on are not shown, or -1.
+     */
+    void restart(long dropBelowUs, long endUs) {
+        segments.clear();
+        maxQueuedTagUs = -1;
+        segments.add(new Segment(0, dropBelowUs, endUs, 0));
+    }
+
+    void clear() {
+        segments.clear();
+        maxQueuedTagUs = -1;
+    }
+
+    /**
+     * @return the segment being fed, or null if nothing is queued.
+     */
+    Segment feeding() {
+        return segments.peekLast();
+    }
+
+    /**
+     * Records a sample fed in the current segment.
+     *
+     * @return the timestamp to queue the sample with.
+     */
+    long tag(long sampleTimeUs) {
+        long tagUs = sampleTimeUs + segments.peekLast().tagBaseUs;
+        maxQueuedTagUs = Math.max(maxQueuedTagUs, tagUs);
+        return tagUs;
+    }
+
+    /**
+     * Starts a segment for the input continuing at the loop start. It is placed right after
+     * the end of the current segment on the playback timeline.
+     *
+     * @param durationUs the duration of the video, or a negative value if unknown. Used as the
+     *                   end of a segment that runs to the end of the video.
+     */
+    void wrapAround(long startUs, long endUs, long durationUs) {
+        Segment previous = segments.peekLast();
+        long previousEndUs = previous.endUs >= 0 ? previous.endUs
+                : durationUs > 0 ? durationUs : maxQueuedTagUs - previous.tagBaseUs;
+        segments.add(new Segment(maxQueuedTagUs + 1, startUs, endUs,
+                previous.timelineOffsetUs + previousEndUs - startUs));
+    }
+
+    /**
+     * Finds the segment an output timestamp was queued in, and forgets the older ones.
+     */
+    Segment segmentFor(long tagUs) {
+        while (segments.size() > 1) {
+            Segment first = segments.pollFirst();
+            if (segments.peekFirst().tagBaseUs > tagUs) {
+                segments.addFirst(first);
+                break;
+            }
+        }
+        return segments.peekFirst();
+    }
+
+    /**
+     * A contiguous run of samples fed to the decoder, between two seeks or loop wraps.
+     */
+    static final class Segment {
+        // Added to the sample times of this segment before they are queued
+        final long tagBaseUs;
+        // Frames before this time are not shown, or -1
+        final long dropBelowUs;
+        // Frames from this time on are not shown, or -1
+        long endUs;
+        // Added to the sample times of this segment to place them on the playback timeline
+        final long timelineOffsetUs;
+
+        Segment(long tagBaseUs, long dropBelowUs, long endUs, long timelineOffsetUs) {
+            this.tagBaseUs = tagBaseUs;
+            this.dropBelowUs = dropBelowUs;
+            this.endUs = endUs;
+            this.timelineOffsetUs = timelineOffsetUs;
+        }
+
+        boolean shows(long ptsUs) {
+            return ptsUs >= dropBelowUs && (endUs < 0 || ptsUs < endUs);
+        }
+    }
+}
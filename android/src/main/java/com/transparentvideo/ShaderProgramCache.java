@@ -0,0 +1,180 @@
+package com.transparentvideo;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.microedition.khronos.egl.EGL10;
+import javax.microedition.khronos.egl.EGLContext;
+
+/**
+ * Process-wide cache of linked shader programs, keyed by their vertex and fragment source.
+ * <p>
+ * Every {@link AlphaMovieView} renders on the shared {@link GLTextureView} thread with a single
+ * EGL context, so a program compiled for one view can be used by all of them. Programs are
+ * reference counted; preloaded programs stay alive even when no view uses them. Linked programs
+ * are also persisted through {@link ProgramBinaryCache}. All methods must be called on the GL
+ * thread with the shared context current.
+ */
+final class ShaderProgramCache {
+    private static final String TAG = "ShaderProgramCache";
+
+    private static final Map<String, Entry> entries = new HashMap<>();
+    private static final Map<Integer, Entry> entriesByProgram = new HashMap<>();
+    private static EGLContext context;
+
+    private ShaderProgramCache() {
+    }
+
+    /**
+     * Returns a linked program for the given sources, compiling it on first use.
+     *
+     * @return the program, or 0 if it could not be compiled or linked.
+     */
+    static synchronized int acquire(String vertexSource, String fragmentSource) {
+        Entry entry = obtain(vertexSource, fragmentSource);
+        if (entry == null) {
+            return 0;
+        }
+        entry.refCount++;
+        return entry.program;
+    }
+
+    /**
+     * Releases a program returned by {@link #acquire(String, String)}. The program is deleted
+     * once no renderer uses it, unless it was preloaded.
+     */
+    static synchronized void release(int program) {
+        checkContext();
+        Entry entry = entriesByProgram.get(program);
+        if (entry == null || --entry.refCount > 0 || entry.pinned) {
+            return;
+        }
+        entries.remove(entry.key);
+        entriesByProgram.remove(program);
+        GLState.deleteProgram(program);
+    }
+
+    /**
+     * Compiles the program for the given sources, if needed, and keeps it alive for the
+     * lifetime of the shared EGL context.
+     */
+    static synchronized void preload(String vertexSource, String fragmentSource) {
+        Entry entry = obtain(vertexSource, fragmentSource);
+        if (entry != null) {
+            entry.pinned = true;
+        }
+    }
+
+    /**
+     * Records that the given renderer is about to set the uniforms of a program. Uniform values
+     * are program state, so a renderer sharing a program must re-upload them after another
+     * renderer used it.
+     *
+     * @return true if the uniforms were last set by a different renderer.
+     */
+    static synchronized boolean claimUniforms(int program, Object owner) {
+        Entry entry = entriesByProgram.get(program);
+        if (entry == null || entry.uniformOwner == owner) {
+            return false;
+        }
+        entry.uniformOwner = owner;
+        return true;
+    }
+
+    private static Entry obtain(String vertexSource, String fragmentSource) {
+        checkContext();
+        String key = vertexSource + '\0' + fragmentSource;
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            int program = ProgramBinaryCache.load(vertexSource, fragmentSource);
+            if (program == 0) {
+                program = createProgram(vertexSource, fragmentSource);
+                if (program != 0) {
+                    ProgramBinaryCache.store(program, vertexSource, fragmentSource);
+                }
+            }
+            if (program == 0) {
+                return null;
+            }
+            entry = new Entry(key, program);
+            entries.put(key, entry);
+            entriesByProgram.put(program, entry);
+        }
+        return entry;
+    }
+
+    // Handles from a lost or released context are meaningless in the new one
+    private static void checkContext() {
+        EGLContext current = ((EGL10) EGLContext.getEGL()).eglGetCurrentContext();
+        if (current != null && !current.equals(context)) {
+            entries.clear();
+            entriesByProgram.clear();
+            context = current;
+        }
+    }
+
+    private static int loadShader(int shaderType, String source) {
+        int shader = GLES20.glCreateShader(shaderType);
+        if (shader != 0) {
+            GLES20.glShaderSource(shader, source);
+            GLES20.glCompileShader(shader);
+            int[] compiled = new int[1];
+            GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, compiled, 0);
+            if (compiled[0] == 0) {
+                Log.e(TAG, "Could not compile shader " + shaderType + ":");
+                Log.e(TAG, GLES20.glGetShaderInfoLog(shader));
+                GLES20.glDeleteShader(shader);
+                shader = 0;
+            }
+        }
+        return shader;
+    }
+
+    private static int createProgram(String vertexSource, String fragmentSource) {
+        int vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, vertexSource);
+        if (vertexShader == 0) {
+            return 0;
+        }
+        int pixelShader = loadShader(GLES20.GL_FRAGMENT_SHADER, fragmentSource);
+        if (pixelShader == 0) {
+            GLES20.glDeleteShader(vertexShader);
+            return 0;
+        }
+
+        int program = GLES20.glCreateProgram();
+        if (program != 0) {
+            GLES20.glAttachShader(program, vertexShader);
+            GLES20.glAttachShader(program, pixelShader);
+            ProgramBinaryCache.prepareForLink(program);
+            GLES20.glLinkProgram(program);
+            int[] linkStatus = new int[1];
+            GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
+            if (linkStatus[0] != GLES20.GL_TRUE) {
+                Log.e(TAG, "Could not link program: ");
+                Log.e(TAG, GLES20.glGetProgramInfoLog(program));
+                GLES20.glDeleteProgram(program);
+                program = 0;
+            }
+        }
+        // The shaders are only needed until the program is linked
+        GLES20.glDeleteShader(vertexShader);
+        GLES20.glDeleteShader(pixelShader);
+        return program;
+    }
+
+    private static class Entry {
+        final String key;
+        final int program;
+        int refCount;
+        boolean pinned;
+        Object uniformOwner;
+
+        Entry(String key, int program) {
+            this.key = key;
+            this.program = program;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package com.transparentvideo;
+
+import android.graphics.SurfaceTexture;
+import android.opengl.GLES20;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * One decoder shared by every {@link AlphaMovieView} that shows the same video with
+ * {@link AlphaMovieView#setShareDecoder(boolean)} set, so that N identical stickers cost a
+ * single decode.
+ * <p>
+ * The decoder renders into one SurfaceTexture created on the shared GL thread. All views draw
+ * with the same EGL context, so each of them samples its external texture directly; the first
+ * view to draw after a frame arrived latches it for all of them. The stream loops the whole
+ * video, without audio, for as long as a view uses it. Streams are acquired and released on
+ * the main thread.
+ */
+final class SharedVideoStream implements SurfaceTexture.OnFrameAvailableListener {
+    private static final String TAG = "SharedVideoStream";
+
+    private static final Map<String, SharedVideoStream> streams = new HashMap<>();
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private final String key;
+    private VideoSource source;
+    private final PlaybackEngine engine = new MediaCodecEngine();
+    private final List<VideoRenderer> renderers = new CopyOnWriteArrayList<>();
+
+    // Guarded by this
+    private boolean released;
+    private boolean frameAvailable;
+    private boolean hasFrame;
+    private SurfaceTexture surfaceTexture;
+    private Surface surface;
+    private int textureId;
+
+    private SharedVideoStream(String key) {
+        this.key = key;
+    }
+
+    /**
+     * Returns the stream for a source, opening it if no view uses it yet. The source must have
+     * a {@link VideoSource#key}.
+     */
+    static SharedVideoStream acquire(VideoSource source, VideoRenderer renderer) {
+        SharedVideoStream stream = streams.get(source.key);
+        if (stream == null) {
+            stream = new SharedVideoStream(source.key);
+            streams.put(source.key, stream);
+            stream.open(source);
+        }
+        stream.renderers.add(renderer);
+        return stream;
+    }
+
+    /**
+     * Stops notifying the renderer of new frames. The stream is closed once no renderer uses
+     * it anymore.
+     */
+    void release(VideoRenderer renderer) {
+        // Both the view and the renderer release it, whichever comes first
+        if (!renderers.remove(renderer) || !renderers.isEmpty()) {
+            return;
+        }
+        streams.remove(key);
+        engine.release();
+        if (source != null) {
+            source.release();
+            source = null;
+        }
+        synchronized (this) {
+            released = true;
+        }
+        AlphaMovieView.queueSharedGLEvent(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SharedVideoStream.this) {
+                    if (surfaceTexture != null) {
+                        surface.release();
+                        surfaceTexture.release();
+                        GLState.deleteTexture(textureId);
+                        surfaceTexture = null;
+                        surface = null;
+                        textureId = 0;
+                    }
+                }
+            }
+        });
+    }
+
+    private void open(VideoSource source) {
+        if (source.retain()) {
+            this.source = source;
+        }
+        engine.setLooping(true);
+        engine.setListener(new PlaybackEngine.Listener() {
+            @Override
+            public void onPrepared(PlaybackEngine engine) {
+                engine.start();
+            }
+
+            @Override
+            public void onCompletion(PlaybackEngine engine) {
+            }
+
+            @Override
+            public void onSeekComplete(PlaybackEngine engine) {
+            }
+
+            @Override
+            public void onError(PlaybackEngine engine, int what, int extra) {
+                Log.e(TAG, "Playback error " + what + ", " + extra);
+            }
+        });
+        AlphaMovieView.queueSharedGLEvent(new Runnable() {
+            @Override
+            public void run() {
+                final Surface target;
+                synchronized (SharedVideoStream.this) {
+                    if (released) {
+                        return;
+                    }
+                    createSurface();
+                    target = surface;
+                }
+                // Back on the main thread, where the stream is released
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (SharedVideoStream.this.source != null) {
+                            prepare(SharedVideoStream.this.source, target);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void prepare(VideoSource source, Surface target) {
+        engine.setSurface(target);
+        try {
+            source.applyTo(engine);
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage(), e);
+            return;
+        }
+        engine.prepareAsync();
+    }
+
+    private void createSurface() {
+        int[] textures = new int[1];
+        GLES20.glGenTextures(1, textures, 0);
+        textureId = textures[0];
+        GLState.bindExternalTexture(textureId);
+        GLES20.glTexParameterf(GLState.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MIN_FILTER,
+                GLES20.GL_NEAREST);
+        GLES20.glTexParameterf(GLState.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MAG_FILTER,
+                GLES20.GL_LINEAR);
+        surfaceTexture = new SurfaceTexture(textureId);
+        surfaceTexture.setOnFrameAvailableListener(this);
+        surface = new Surface(surfaceTexture);
+    }
+
+    @Override
+    public void onFrameAvailable(SurfaceTexture surfaceTexture) {
+        synchronized (this) {
+            frameAvailable = true;
+        }
+        for (VideoRenderer renderer : renderers) {
+            renderer.onFrameAvailable(surfaceTexture);
+        }
+    }
+
+    /**
+     * Latches the latest frame, if no other view did yet, and copies its transform. Must be
+     * called on the GL thread.
+     *
+     * @return the external texture holding the frame, or 0 if there is no frame yet.
+     */
+    synchronized int latch(float[] transformMatrix) {
+        if (surfaceTexture == null) {
+            return 0;
+        }
+        if (frameAvailable) {
+            surfaceTexture.updateTexImage();
+            GLState.externalTextureBound(textureId);
+            frameAvailable = false;
+            hasFrame = true;
+        }
+        if (!hasFrame) {
+            return 0;
+        }
+        surfaceTexture.getTransformMatrix(transformMatrix);
+        return textureId;
+    }
+}
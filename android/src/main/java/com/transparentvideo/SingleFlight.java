@@ -0,0 +1,71 @@
+package com.transparentvideo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Coalesces concurrent requests for the same key into a single piece of work, e.g. when
+ * several views mount with the same sticker at once. Requests arriving while the work runs
+ * wait for its result instead of starting their own. Not thread-safe; the caches using it
+ * only touch it on the main thread.
+ *
+ * @param <C> the callback type of the requests.
+ */
+final class SingleFlight<C> {
+    private final Map<String, Flight<C>> flights = new HashMap<>();
+
+    /**
+     * Adds a request for a key.
+     *
+     * @param key the key of the work, or null if requests for it cannot be shared.
+     * @return the new flight the caller must run and {@link #finish(Flight)}, or null if the
+     * request joined a flight that is already running.
+     */
+    Flight<C> join(String key, C callback) {
+        Flight<C> flight = key != null ? flights.get(key) : null;
+        if (flight != null) {
+            flight.callbacks.add(callback);
+            return null;
+        }
+        flight = new Flight<>(key);
+        flight.callbacks.add(callback);
+        if (key != null) {
+            flights.put(key, flight);
+        }
+        return flight;
+    }
+
+    /**
+     * Detaches the running flight of a key, if any, so that the next request starts a new
+     * one. The detached flight still completes its own requests.
+     */
+    void forget(String key) {
+        flights.remove(key);
+    }
+
+    /**
+     * Ends a flight. Its requests are then answered through {@link Flight#callbacks}.
+     *
+     * @return true if the flight was still the current one for its key, i.e. its result may
+     * be cached.
+     */
+    boolean finish(Flight<C> flight) {
+        if (flight.key != null && flights.get(flight.key) == flight) {
+            flights.remove(flight.key);
+            return true;
+        }
+        return false;
+    }
+
+    static final class Flight<C> {
+        final String key;
+        // Every request that joined, in order
+        final List<C> callbacks = new ArrayList<>();
+
+        private Flight(String key) {
+            this.key = key;
+        }
+    }
+}
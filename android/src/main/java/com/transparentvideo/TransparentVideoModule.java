@@ -0,0 +1,78 @@
+package com.transparentvideo;
+
+import android.graphics.Bitmap;
+
+import androidx.annotation.NonNull;
+
+import com.facebook.react.bridge.Promise;
+import com.facebook.react.bridge.ReactApplicationContext;
+import com.facebook.react.bridge.ReactContextBaseJavaModule;
+import com.facebook.react.bridge.ReactMethod;
+import com.facebook.react.bridge.UiThreadUtil;
+
+/**
+ * Prepares videos before the views showing them mount: {@code preload} probes the size of a
+ * video and decodes its first frame in the background, so a view with the same {@code src}
+ * sizes itself and draws that frame on its first frame, while its decoder starts.
+ */
+public class TransparentVideoModule extends ReactContextBaseJavaModule {
+  private final ReactApplicationContext reactContext;
+
+  public TransparentVideoModule(ReactApplicationContext reactContext) {
+    super(reactContext);
+    this.reactContext = reactContext;
+  }
+
+  @Override
+  @NonNull
+  public String getName() {
+    return "TransparentVideoModule";
+  }
+
+  /**
+   * Resolves with whether the first frame could be decoded once the video is ready to show.
+   */
+  @ReactMethod
+  public void preload(final String uri, final Promise promise) {
+    UiThreadUtil.runOnUiThread(new Runnable() {
+      @Override
+      public void run() {
+        VideoSource source = VideoSource.fromReactUri(reactContext, uri);
+        if (source.key == null) {
+          source.release();
+          promise.reject("E_PRELOAD", "Cannot preload " + uri);
+          return;
+        }
+        MetadataCache.get(reactContext, source, new MetadataCache.Callback() {
+          @Override
+          public void onMetadata(MetadataCache.Metadata metadata) {
+            // Only cached for later views
+          }
+        });
+        PosterCache.get(reactContext, source, new PosterCache.Callback() {
+          @Override
+          public void onPoster(Bitmap poster) {
+            promise.resolve(poster != null);
+          }
+        });
+        // The caches keep the source open for as long as they need it
+        source.release();
+      }
+    });
+  }
+
+  /**
+   * Drops the first frame kept in memory for a preloaded video.
+   */
+  @ReactMethod
+  public void evict(final String uri) {
+    UiThreadUtil.runOnUiThread(new Runnable() {
+      @Override
+      public void run() {
+        VideoSource source = VideoSource.fromReactUri(reactContext, uri);
+        PosterCache.evict(source);
+        source.release();
+      }
+    });
+  }
+}
@@ -1,5 +1,7 @@
 package com.transparentvideo;
 
+import android.content.Context;
+
 import com.facebook.react.ReactPackage;
 import com.facebook.react.bridge.NativeModule;
 import com.facebook.react.bridge.ReactApplicationContext;
@@ -10,9 +12,36 @@ import java.util.Collections;
 import java.util.List;
 
 public class TransparentVideoPackage implements ReactPackage {
+  /**
+   * Optionally compiles the built-in shaders in the background, e.g. from
+   * {@code MainApplication.onCreate}, so the first transparent video to mount
+   * does not hitch while the GL driver compiles them. On later launches the
+   * programs are restored from the binaries cached under the app's cache dir.
+   */
+  public static void warmUp(Context context) {
+    AlphaMovieView.warmUpShaders(context);
+  }
+
+  /**
+   * Same as {@link #warmUp(Context)}, without the persistent binary cache.
+   */
+  public static void warmUp() {
+    AlphaMovieView.warmUpShaders(null);
+  }
+
+  /**
+   * Sets how many transparent videos may decode at the same time, 4 by
+   * default. When more are mounted, the ones with the largest visible area
+   * play and the others keep showing their last frame, or the first frame of
+   * their video, until they scroll into view.
+   */
+  public static void setMaxActiveDecoders(int maxActiveDecoders) {
+    DecoderBudget.setMaxActiveDecoders(maxActiveDecoders);
+  }
+
   @Override
   public List<NativeModule> createNativeModules(ReactApplicationContext reactContext) {
-    return Collections.emptyList();
+    return Collections.<NativeModule>singletonList(new TransparentVideoModule(reactContext));
   }
 
   @Override
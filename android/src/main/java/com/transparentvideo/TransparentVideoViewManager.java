@@ -10,22 +10,32 @@ import android.widget.LinearLayout;
 
 import androidx.annotation.NonNull;
 
+import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.ReactApplicationContext;
+import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.common.MapBuilder;
 import com.facebook.react.uimanager.SimpleViewManager;
 import com.facebook.react.uimanager.ThemedReactContext;
 import com.facebook.react.uimanager.annotations.ReactProp;
+import com.facebook.react.uimanager.events.RCTEventEmitter;
 import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.ReadableMapKeySetIterator;
 
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class TransparentVideoViewManager extends SimpleViewManager<LinearLayout> {
 
   private static List<LinearLayout> sInstances = new ArrayList<>();
+  // Last source of each view, to reload it when the playback engine is replaced
+  private static Map<LinearLayout, String> sSources = new HashMap<>();
 
   public static final String REACT_CLASS = "TransparentVideoView";
   private static final String TAG = "TransparentVideoViewManager";
+  private static final String EVENT_AUDIO_INFO = "audioInfo";
 
   ReactApplicationContext reactContext;
 
@@ -47,12 +57,18 @@ public class TransparentVideoViewManager extends SimpleViewManager<LinearLayout>
     return view;
   }
 
+  @Override
+  public Map<String, Object> getExportedCustomDirectEventTypeConstants() {
+    return MapBuilder.<String, Object>of(
+      EVENT_AUDIO_INFO, MapBuilder.of("registrationName", "onAudioInfo"));
+  }
+
   public static void destroyView(LinearLayout view) {
     sInstances.remove(view);
+    sSources.remove(view);
   }
 
-  @ReactProp(name = "src")
-  public void setSrc(LinearLayout view, ReadableMap src) {
+  private AlphaMovieView getAlphaMovieView(final LinearLayout view) {
     AlphaMovieView alphaMovieView = (AlphaMovieView)view.getChildAt(0);
     if (alphaMovieView == null) {
       alphaMovieView = new AlphaMovieView(reactContext, null);
@@ -60,14 +76,139 @@ public class TransparentVideoViewManager extends SimpleViewManager<LinearLayout>
       lp.gravity = Gravity.CENTER;
       alphaMovieView.setLayoutParams(lp);
       alphaMovieView.setAutoPlayAfterResume(true);
+      alphaMovieView.setOnAudioInfoListener(new AlphaMovieView.OnAudioInfoListener() {
+        @Override
+        public void onAudioInfo(boolean hasAudio) {
+          WritableMap event = Arguments.createMap();
+          event.putBoolean("hasAudio", hasAudio);
+          reactContext.getJSModule(RCTEventEmitter.class).receiveEvent(view.getId(), EVENT_AUDIO_INFO, event);
+        }
+      });
       view.addView(alphaMovieView);
     }
+    return alphaMovieView;
+  }
+
+  @ReactProp(name = "alphaScale", defaultFloat = 1f)
+  public void setAlphaScale(LinearLayout view, float alphaScale) {
+    getAlphaMovieView(view).setAlphaScale(alphaScale);
+  }
+
+  @ReactProp(name = "renderScale", defaultFloat = 1f)
+  public void setRenderScale(LinearLayout view, float renderScale) {
+    getAlphaMovieView(view).setRenderScale(renderScale);
+  }
+
+  @ReactProp(name = "maxRenderSize", defaultInt = 0)
+  public void setMaxRenderSize(LinearLayout view, int maxRenderSize) {
+    getAlphaMovieView(view).setMaxRenderSize(maxRenderSize);
+  }
+
+  @ReactProp(name = "maxFps", defaultInt = 0)
+  public void setMaxFps(LinearLayout view, int maxFps) {
+    getAlphaMovieView(view).setMaxFps(maxFps);
+  }
+
+  @ReactProp(name = "atlasColumns", defaultInt = 1)
+  public void setAtlasColumns(LinearLayout view, int atlasColumns) {
+    AlphaMovieView alphaMovieView = getAlphaMovieView(view);
+    alphaMovieView.setAtlasGrid(atlasColumns, alphaMovieView.getAtlasRows());
+  }
+
+  @ReactProp(name = "atlasRows", defaultInt = 1)
+  public void setAtlasRows(LinearLayout view, int atlasRows) {
+    AlphaMovieView alphaMovieView = getAlphaMovieView(view);
+    alphaMovieView.setAtlasGrid(alphaMovieView.getAtlasColumns(), atlasRows);
+  }
+
+  @ReactProp(name = "atlasCell", defaultInt = 0)
+  public void setAtlasCell(LinearLayout view, int atlasCell) {
+    getAlphaMovieView(view).setAtlasCell(atlasCell);
+  }
+
+  @ReactProp(name = "segments")
+  public void setSegments(LinearLayout view, ReadableMap segments) {
+    Map<String, AlphaMovieView.Segment> table = new HashMap<>();
+    if (segments != null) {
+      ReadableMapKeySetIterator iterator = segments.keySetIterator();
+      while (iterator.hasNextKey()) {
+        String name = iterator.nextKey();
+        try {
+          ReadableMap segment = segments.isNull(name) ? null : segments.getMap(name);
+          if (isValidSegment(segment)) {
+            table.put(name, new AlphaMovieView.Segment((long) segment.getDouble("start"),
+              (long) segment.getDouble("end")));
+            continue;
+          }
+        } catch (RuntimeException e) {
+          // Not a map of numbers
+        }
+        Log.w(TAG, "Ignoring segment " + name + ", expected { start, end } with start < end");
+      }
+    }
+    getAlphaMovieView(view).setSegments(table);
+  }
+
+  private static boolean isValidSegment(ReadableMap segment) {
+    if (segment == null || !segment.hasKey("start") || !segment.hasKey("end")
+      || segment.isNull("start") || segment.isNull("end")) {
+      return false;
+    }
+    double start = segment.getDouble("start");
+    double end = segment.getDouble("end");
+    return start >= 0 && end > start;
+  }
+
+  @ReactProp(name = "segment")
+  public void setSegment(LinearLayout view, String segment) {
+    if (segment != null) {
+      getAlphaMovieView(view).playSegment(segment);
+    } else {
+      getAlphaMovieView(view).clearSegment();
+    }
+  }
+
+  @ReactProp(name = "videoOnly")
+  public void setVideoOnly(LinearLayout view, boolean videoOnly) {
+    AlphaMovieView alphaMovieView = getAlphaMovieView(view);
+    if (alphaMovieView.isVideoOnly() == videoOnly) {
+      return;
+    }
+    alphaMovieView.setVideoOnly(videoOnly);
+    reloadSource(view, alphaMovieView);
+  }
+
+  @ReactProp(name = "shareDecoder")
+  public void setShareDecoder(LinearLayout view, boolean shareDecoder) {
+    AlphaMovieView alphaMovieView = getAlphaMovieView(view);
+    if (alphaMovieView.isShareDecoder() == shareDecoder) {
+      return;
+    }
+    alphaMovieView.setShareDecoder(shareDecoder);
+    reloadSource(view, alphaMovieView);
+  }
+
+  @ReactProp(name = "src")
+  public void setSrc(LinearLayout view, ReadableMap src) {
+    AlphaMovieView alphaMovieView = getAlphaMovieView(view);
     alphaMovieView.setPacked(true);
-    String file = src.getString("uri").toLowerCase();
+    String file = src.getString("uri");
     Log.d(TAG + " setSrc", "file: " + file);
+    sSources.put(view, file);
+    loadSource(alphaMovieView, file);
+  }
+
+  private void reloadSource(LinearLayout view, AlphaMovieView alphaMovieView) {
+    String file = sSources.get(view);
+    if (file != null) {
+      loadSource(alphaMovieView, file);
+    }
+  }
 
+  private void loadSource(AlphaMovieView alphaMovieView, String file) {
     try {
-      Integer rawResourceId = Utils.getRawResourceId(reactContext, file);
+      // Resource names are lowercase; urls and paths are kept as they are
+      Integer rawResourceId = Utils.getRawResourceId(reactContext, file.toLowerCase());
       Log.d(TAG + " setSrc", "ResourceID: " + rawResourceId);
 
       alphaMovieView.setVideoFromResourceId(reactContext, rawResourceId);
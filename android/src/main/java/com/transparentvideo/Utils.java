@@ -3,8 +3,41 @@ package com.transparentvideo;
 import android.content.Context;
 import android.os.Bundle;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
 public class Utils {
   public static int getRawResourceId(Context context, String resourceName) {
     return context.getResources().getIdentifier("" + resourceName, "raw", context.getPackageName());
   }
+
+  static void closeQuietly(Closeable closeable) {
+    if (closeable == null) {
+      return;
+    }
+    try {
+      closeable.close();
+    } catch (IOException e) {
+      // Nothing left to clean up
+    }
+  }
+
+  /**
+   * @return the SHA-1 of the value as a hex string, for use as a cache file name, or null if
+   * it could not be computed.
+   */
+  static String sha1(String value) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-1").digest(value.getBytes("UTF-8"));
+      StringBuilder builder = new StringBuilder(digest.length * 2);
+      for (byte b : digest) {
+        builder.append(String.format("%02x", b));
+      }
+      return builder.toString();
+    } catch (NoSuchAlgorithmException | IOException e) {
+      return null;
+    }
+  }
 }
@@ -16,17 +16,21 @@
 
 package com.transparentvideo;
 
+import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.graphics.SurfaceTexture;
 import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.opengl.GLUtils;
 import android.opengl.Matrix;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import android.view.Surface;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
-import java.util.Locale;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
@@ -39,8 +43,8 @@ class VideoRenderer implements GLTextureView.Renderer, SurfaceTexture.OnFrameAva
     private static final int FLOAT_SIZE_BYTES = 4;
     private static final int TRIANGLE_VERTICES_DATA_STRIDE_BYTES = 5 * FLOAT_SIZE_BYTES;
     private static final int TRIANGLE_VERTICES_DATA_POS_OFFSET = 0;
-    private static final int TRIANGLE_VERTICES_DATA_UV_OFFSET = 3;
-    private final float[] triangleVerticesData = {
+    private static final int TRIANGLE_VERTICES_DATA_UV_OFFSET = 3 * FLOAT_SIZE_BYTES;
+    private static final float[] TRIANGLE_VERTICES_DATA = {
             // X, Y, Z, U, V
             -1.0f, -1.0f, 0, 0.f, 0.f,
             1.0f, -1.0f, 0, 1.f, 0.f,
@@ -48,9 +52,28 @@ class VideoRenderer implements GLTextureView.Renderer, SurfaceTexture.OnFrameAva
             1.0f, 1.0f, 0, 1.f, 1.f,
     };
 
-    private FloatBuffer triangleVertices;
+    private static final float[] IDENTITY_MATRIX = new float[16];
 
-    private final String vertexShader =
+    // Bitmaps are uploaded top row first, video frames bottom row first
+    private static final float[] POSTER_MATRIX = {
+            1, 0, 0, 0,
+            0, -1, 0, 0,
+            0, 0, 1, 0,
+            0, 1, 0, 1,
+    };
+
+    static {
+        Matrix.setIdentityM(IDENTITY_MATRIX, 0);
+    }
+
+    // Fails loudly on GL errors in debug builds only; glGetError stalls the pipeline
+    private static final boolean CHECK_GL_ERRORS = BuildConfig.DEBUG;
+
+    // Static quad geometry, shared by all renderers through the shared context
+    private static int quadBuffer;
+    private static int quadBufferGeneration;
+
+    private static final String VERTEX_SHADER =
             "uniform mat4 uMVPMatrix;\n" +
                     "uniform mat4 uSTMatrix;\n" +
                     "attribute vec4 aPosition;\n" +
@@ -61,56 +84,95 @@ class VideoRenderer implements GLTextureView.Renderer, SurfaceTexture.OnFrameAva
                     "  vTextureCoord = (uSTMatrix * aTextureCoord).xy;\n" +
                     "}\n";
 
-    private final String alphaShader = "#extension GL_OES_EGL_image_external : require\n"
+    private static final String ALPHA_SHADER = "#extension GL_OES_EGL_image_external : require\n"
             + "precision mediump float;\n"
             + "varying vec2 vTextureCoord;\n"
             + "uniform samplerExternalOES sTexture;\n"
-            + "varying mediump float text_alpha_out;\n"
+            + "uniform vec3 uKeyColor;\n"
+            + "uniform float uTolerance;\n"
             + "void main() {\n"
             + "  vec4 color = texture2D(sTexture, vTextureCoord);\n"
-            + "  float red = %f;\n"
-            + "  float green = %f;\n"
-            + "  float blue = %f;\n"
-            + "  float accuracy = %f;\n"
-            + "  if (abs(color.r - red) <= accuracy && abs(color.g - green) <= accuracy && abs(color.b - blue) <= accuracy) {\n"
-            + "      gl_FragColor = vec4(color.r, color.g, color.b, 0.0);\n"
-            + "  } else {\n"
-            + "      gl_FragColor = vec4(color.r, color.g, color.b, 1.0);\n"
-            + "  }\n"
+            + "  bool keyed = all(lessThanEqual(abs(color.rgb - uKeyColor), vec3(uTolerance)));\n"
+            + "  gl_FragColor = vec4(color.rgb, keyed ? 0.0 : 1.0);\n"
             + "}\n";
 
-    private final String alphaPackedShader = "#extension GL_OES_EGL_image_external : require\n"
+    // The color and alpha planes are located by uColorRect and uAlphaRect (x, y, width, height
+    // in frame UV space, before the SurfaceTexture transform). Computing both coordinates per
+    // vertex keeps the texture fetches independent of fragment math.
+    private static final String PACKED_VERTEX_SHADER =
+            "uniform mat4 uMVPMatrix;\n" +
+                    "uniform mat4 uSTMatrix;\n" +
+                    "uniform vec4 uColorRect;\n" +
+                    "uniform vec4 uAlphaRect;\n" +
+                    "attribute vec4 aPosition;\n" +
+                    "attribute vec4 aTextureCoord;\n" +
+                    "varying vec2 vColorCoord;\n" +
+                    "varying vec2 vAlphaCoord;\n" +
+                    "void main() {\n" +
+                    "  gl_Position = uMVPMatrix * aPosition;\n" +
+                    "  vec2 colorCoord = uColorRect.xy + aTextureCoord.xy * uColorRect.zw;\n" +
+                    "  vec2 alphaCoord = uAlphaRect.xy + aTextureCoord.xy * uAlphaRect.zw;\n" +
+                    "  vColorCoord = (uSTMatrix * vec4(colorCoord, 0.0, 1.0)).xy;\n" +
+                    "  vAlphaCoord = (uSTMatrix * vec4(alphaCoord, 0.0, 1.0)).xy;\n" +
+                    "}\n";
+
+    private static final String ALPHA_PACKED_SHADER = "#extension GL_OES_EGL_image_external : require\n"
             + "precision mediump float;\n"
-            + "varying vec2 vTextureCoord;\n"
+            + "varying vec2 vColorCoord;\n"
+            + "varying vec2 vAlphaCoord;\n"
             + "uniform samplerExternalOES sTexture;\n"
-            + "varying mediump float text_alpha_out;\n"
             + "void main() {\n"
-            + "  vec4 color = texture2D(sTexture, vec2(vTextureCoord.x, vTextureCoord.y / 2.0));\n"
-            + "  float alpha = texture2D(sTexture, vec2(vTextureCoord.x, 0.5 + vTextureCoord.y / 2.0)).r;\n"
+            + "  vec4 color = texture2D(sTexture, vColorCoord);\n"
+            + "  float alpha = texture2D(sTexture, vAlphaCoord).r;\n"
             + "  gl_FragColor = vec4(color.rgb, alpha);\n"
             + "}\n";
 
+    private static final String ALPHA_POSTER_SHADER = posterShaderFor(ALPHA_SHADER);
+    private static final String ALPHA_PACKED_POSTER_SHADER = posterShaderFor(ALPHA_PACKED_SHADER);
+
     private double accuracy = 0.95;
 
-    private String shader = alphaShader;
+    private String shader = ALPHA_SHADER;
 
-    private float[] mVPMatrix = new float[16];
     private float[] sTMatrix = new float[16];
 
     private int program;
+    private String programSource;
     private int textureID;
-    private int uMVPMatrixHandle;
-    private int uSTMatrixHandle;
-    private int aPositionHandle;
-    private int aTextureHandle;
+    private ProgramLocations locations;
+    private int vertexArray;
+    private int width;
+    private int height;
 
     private SurfaceTexture surface;
+    // Replaces the own surface while set
+    private SharedVideoStream sharedStream;
+    private int sharedTexture;
+    // Drawn through a sampler2D variant of the program until the first frame is latched, and
+    // again when the surface is recreated empty
+    private Bitmap poster;
+    private boolean posterChanged;
+    private boolean showingPoster;
+    private boolean frameLatched;
+    // GL thread only. The poster has its own program, so that the live one is ready, uniforms
+    // included, when the first frame arrives.
+    private int posterTexture;
+    private int posterProgram;
+    private ProgramLocations posterLocations;
+    private final FramePacer framePacer = new FramePacer();
     private boolean updateSurface = false;
     private boolean updateShader = false;
-
-    private static int GL_TEXTURE_EXTERNAL_OES = 0x8D65;
+    private boolean updateKeyUniforms = true;
+    private boolean updateLayoutUniforms = true;
+    private long minFrameIntervalNs;
+    private long nextFrameDeadlineNs;
+    private boolean deferredDrawPending;
+    // GL thread only
+    private boolean updateTransform;
+    private boolean uniformsDirty;
 
     private OnSurfacePrepareListener onSurfacePrepareListener;
+    private OnFrameReadyListener onFrameReadyListener;
 
     private boolean isCustom;
 
@@ -119,82 +181,269 @@ class VideoRenderer implements GLTextureView.Renderer, SurfaceTexture.OnFrameAva
      * and right half containing the alpha data
      */
     private boolean isPacked;
+    private AlphaMovieView.PackingLayout packingLayout = AlphaMovieView.PackingLayout.ALPHA_BOTTOM;
+    private float alphaScale = 1.0f;
+    private final float[] colorRect = new float[4];
+    private final float[] alphaRect = new float[4];
+    // Sprite atlas cell shown, as (x, y, width, height) within each plane
+    private final float[] cellRect = {0, 0, 1, 1};
+    private final float[] cellMatrix = new float[16];
+    // GL thread only
+    private final float[] cellSTMatrix = new float[16];
 
     private float redParam = 0.0f;
     private float greenParam = 1.0f;
     private float blueParam = 0.0f;
 
     VideoRenderer() {
-        triangleVertices = ByteBuffer.allocateDirect(
-                triangleVerticesData.length * FLOAT_SIZE_BYTES)
-                .order(ByteOrder.nativeOrder()).asFloatBuffer();
-        triangleVertices.put(triangleVerticesData).position(0);
-
         Matrix.setIdentityM(sTMatrix, 0);
+        computeLayoutLocked();
     }
 
     @Override
     public void onDrawFrame(GL10 glUnused) {
+        boolean uploadKeyUniforms;
+        boolean uploadLayoutUniforms;
+        float keyRed, keyGreen, keyBlue, tolerance;
+        float colorX, colorY, colorWidth, colorHeight;
+        float alphaX, alphaY, alphaWidth, alphaHeight;
+        int texture;
+        float[] stMatrix;
+        boolean drawPoster;
+        Bitmap posterUpload = null;
+        boolean uploadPoster;
+        framePacer.waitForFrameSlot();
         synchronized (this) {
-            if (updateSurface) {
-                surface.updateTexImage();
-                surface.getTransformMatrix(sTMatrix);
-                updateSurface = false;
+            deferredDrawPending = false;
+            latchFrameLocked();
+            drawPoster = showingPoster;
+            texture = sharedStream != null ? sharedTexture : textureID;
+            uploadPoster = posterChanged;
+            if (uploadPoster) {
+                posterUpload = showingPoster ? poster : null;
+                posterChanged = false;
             }
             if (updateShader) {
                 initializeShader();
                 updateShader = false;
             }
+            uploadKeyUniforms = updateKeyUniforms;
+            updateKeyUniforms = false;
+            keyRed = redParam;
+            keyGreen = greenParam;
+            keyBlue = blueParam;
+            tolerance = (float) (1 - accuracy);
+            uploadLayoutUniforms = updateLayoutUniforms;
+            updateLayoutUniforms = false;
+            colorX = colorRect[0];
+            colorY = colorRect[1];
+            colorWidth = colorRect[2];
+            colorHeight = colorRect[3];
+            alphaX = alphaRect[0];
+            alphaY = alphaRect[1];
+            alphaWidth = alphaRect[2];
+            alphaHeight = alphaRect[3];
+            // The packed program reads the cell from the plane rects, the others through the
+            // texture transform
+            stMatrix = drawPoster ? POSTER_MATRIX : sTMatrix;
+            if (!isPacked || isCustom) {
+                Matrix.multiplyMM(cellSTMatrix, 0, stMatrix, 0, cellMatrix, 0);
+                stMatrix = cellSTMatrix;
+            }
+        }
+        if (uploadPoster) {
+            uploadPoster(posterUpload);
         }
-        GLES20.glClear(GLES20.GL_DEPTH_BUFFER_BIT | GLES20.GL_COLOR_BUFFER_BIT);
-
-        GLES20.glEnable(GLES20.GL_BLEND);
-        GLES20.glBlendFunc(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA);
-        GLES20.glClearColor(0.0f, 0.0f, 0.0f, 0.0f);
 
-        GLES20.glUseProgram(program);
-        checkGlError("glUseProgram");
+        GLState.viewport(0, 0, width, height);
+        GLState.clearColor(0.0f, 0.0f, 0.0f, 0.0f);
+        GLES20.glClear(GLES20.GL_DEPTH_BUFFER_BIT | GLES20.GL_COLOR_BUFFER_BIT);
+        if (drawPoster ? posterTexture == 0 : texture == 0) {
+            // A shared stream that has no frame yet; the uniforms are still needed for the
+            // first frame
+            synchronized (this) {
+                updateKeyUniforms |= uploadKeyUniforms;
+                updateLayoutUniforms |= uploadLayoutUniforms;
+            }
+            return;
+        }
 
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-        GLES20.glBindTexture(GL_TEXTURE_EXTERNAL_OES, textureID);
+        int drawProgram;
+        ProgramLocations drawLocations;
+        boolean uploadUniforms;
+        if (drawPoster) {
+            if (posterProgram == 0 && !initializePosterProgram()) {
+                return;
+            }
+            drawProgram = posterProgram;
+            drawLocations = posterLocations;
+            // Posters are only drawn a few times, so all uniforms are uploaded each time. The
+            // upload flags are spent, so the live program gets all of them on its first frame.
+            ShaderProgramCache.claimUniforms(posterProgram, this);
+            uploadUniforms = true;
+            uniformsDirty = true;
+        } else {
+            // Programs are shared between views, so all uniforms are also needed after another
+            // view drew with this program
+            drawProgram = program;
+            drawLocations = locations;
+            uploadUniforms = ShaderProgramCache.claimUniforms(program, this) | uniformsDirty;
+            uniformsDirty = false;
+        }
 
-        triangleVertices.position(TRIANGLE_VERTICES_DATA_POS_OFFSET);
-        GLES20.glVertexAttribPointer(aPositionHandle, 3, GLES20.GL_FLOAT, false,
-                TRIANGLE_VERTICES_DATA_STRIDE_BYTES, triangleVertices);
-        checkGlError("glVertexAttribPointer maPosition");
-        GLES20.glEnableVertexAttribArray(aPositionHandle);
-        checkGlError("glEnableVertexAttribArray aPositionHandle");
+        GLState.enableBlend(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+        GLState.useProgram(drawProgram);
 
-        triangleVertices.position(TRIANGLE_VERTICES_DATA_UV_OFFSET);
-        GLES20.glVertexAttribPointer(aTextureHandle, 3, GLES20.GL_FLOAT, false,
-                TRIANGLE_VERTICES_DATA_STRIDE_BYTES, triangleVertices);
-        checkGlError("glVertexAttribPointer aTextureHandle");
-        GLES20.glEnableVertexAttribArray(aTextureHandle);
-        checkGlError("glEnableVertexAttribArray aTextureHandle");
+        if (uploadUniforms) {
+            GLES20.glUniformMatrix4fv(drawLocations.uMVPMatrix, 1, false, IDENTITY_MATRIX, 0);
+        }
+        if (uploadUniforms || updateTransform || uploadLayoutUniforms) {
+            GLES20.glUniformMatrix4fv(drawLocations.uSTMatrix, 1, false, stMatrix, 0);
+            if (!drawPoster) {
+                updateTransform = false;
+            }
+        }
+        if (uploadUniforms || uploadKeyUniforms) {
+            // Locations are -1 for the packed and custom shaders, which GL ignores
+            GLES20.glUniform3f(drawLocations.uKeyColor, keyRed, keyGreen, keyBlue);
+            GLES20.glUniform1f(drawLocations.uTolerance, tolerance);
+        }
+        if (uploadUniforms || uploadLayoutUniforms) {
+            // Likewise -1 unless the packed shader is in use
+            GLES20.glUniform4f(drawLocations.uColorRect, colorX, colorY, colorWidth, colorHeight);
+            GLES20.glUniform4f(drawLocations.uAlphaRect, alphaX, alphaY, alphaWidth, alphaHeight);
+        }
 
-        Matrix.setIdentityM(mVPMatrix, 0);
-        GLES20.glUniformMatrix4fv(uMVPMatrixHandle, 1, false, mVPMatrix, 0);
-        GLES20.glUniformMatrix4fv(uSTMatrixHandle, 1, false, sTMatrix, 0);
+        if (drawPoster) {
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, posterTexture);
+            // The vertex array of this renderer records the locations of the live program
+            GLState.bindVertexArray(0);
+            bindAttributes(posterLocations);
+        } else {
+            GLState.bindExternalTexture(texture);
+            bindGeometry();
+        }
 
         GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
         checkGlError("glDrawArrays");
 
-        GLES20.glFinish();
+        framePacer.frameSubmitted();
+    }
+
+    private void uploadPoster(Bitmap bitmap) {
+        if (bitmap == null) {
+            if (posterTexture != 0) {
+                GLState.deleteTexture(posterTexture);
+                posterTexture = 0;
+            }
+            return;
+        }
+        if (posterTexture == 0) {
+            int[] textures = new int[1];
+            GLES20.glGenTextures(1, textures, 0);
+            posterTexture = textures[0];
+        }
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, posterTexture);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
+        checkGlError("texImage2D poster");
+    }
+
+    private void bindGeometry() {
+        if (vertexArray != 0) {
+            GLState.bindVertexArray(vertexArray);
+            return;
+        }
+        if (GLInfo.isGles3()) {
+            // The attribute setup is recorded once into a vertex array object
+            int[] arrays = new int[1];
+            GLES30.glGenVertexArrays(1, arrays, 0);
+            vertexArray = arrays[0];
+            GLState.bindVertexArray(vertexArray);
+        } else {
+            GLState.bindVertexArray(0);
+        }
+        bindAttributes(locations);
+        checkGlError("bindGeometry");
+    }
+
+    private static void bindAttributes(ProgramLocations locations) {
+        GLState.bindArrayBuffer(quadBuffer);
+        GLState.vertexAttribPointer(locations.aPosition, 3, TRIANGLE_VERTICES_DATA_STRIDE_BYTES,
+                TRIANGLE_VERTICES_DATA_POS_OFFSET);
+        GLState.vertexAttribPointer(locations.aTextureCoord, 2, TRIANGLE_VERTICES_DATA_STRIDE_BYTES,
+                TRIANGLE_VERTICES_DATA_UV_OFFSET);
+    }
+
+    private void releaseVertexArray() {
+        if (vertexArray != 0) {
+            GLState.deleteVertexArray(vertexArray);
+            vertexArray = 0;
+        }
     }
 
     @Override
     public void onSurfaceDestroyed(GL10 gl) {
-      GLES20.glDeleteProgram(program);
-      GLES20.glDeleteTextures(1, new int[]{textureID}, 0);
+      final SharedVideoStream stream;
+      synchronized (this) {
+        stream = sharedStream;
+        sharedStream = null;
+        sharedTexture = 0;
+      }
+      if (stream != null) {
+        // The stream is only released on the main thread, and would otherwise keep
+        // this renderer and its decoder alive if the view is gone
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+          @Override
+          public void run() {
+            stream.release(VideoRenderer.this);
+          }
+        });
+      }
+      ShaderProgramCache.release(program);
+      program = 0;
+      releasePosterProgram();
+      releaseVertexArray();
+      framePacer.release(true);
+      GLState.deleteTexture(textureID);
+      if (posterTexture != 0) {
+        GLState.deleteTexture(posterTexture);
+        posterTexture = 0;
+      }
+      if (surface != null) {
+        surface.release();
+        surface = null;
+      }
     }
 
     @Override
     public void onSurfaceChanged(GL10 glUnused, int width, int height) {
-        GLES20.glViewport(0, 0, width, height);
+        // Applied before each draw, as the viewport is shared with the other views
+        this.width = width;
+        this.height = height;
     }
 
     @Override
     public void onSurfaceCreated(GL10 glUnused, EGLConfig config) {
+        // Any previous program, vertex array or fence belonged to a context that no longer exists
+        int generation = GLState.checkContext();
+        program = 0;
+        posterProgram = 0;
+        vertexArray = 0;
+        posterTexture = 0;
+        synchronized (this) {
+            // The new surface has no frame yet
+            showingPoster = poster != null;
+            posterChanged = showingPoster;
+        }
+        framePacer.release(false);
+        if (quadBufferGeneration != generation) {
+            quadBuffer = createQuadBuffer();
+            quadBufferGeneration = generation;
+        }
         if (!initializeShader()) {
             return;
         }
@@ -202,33 +451,88 @@ class VideoRenderer implements GLTextureView.Renderer, SurfaceTexture.OnFrameAva
     }
 
     public boolean initializeShader() {
-        program = createProgram(vertexShader, this.resolveShader());
+        if (program != 0) {
+            ShaderProgramCache.release(program);
+        }
+        // Attribute locations may differ between programs
+        releaseVertexArray();
+        // The poster variant follows the live program
+        releasePosterProgram();
+        String source = this.resolveShader();
+        program = ShaderProgramCache.acquire(vertexShaderFor(source), source);
+        synchronized (this) {
+            programSource = program != 0 ? source : null;
+            updateShader = false;
+        }
         if (program == 0) {
             return false;
         }
-        aPositionHandle = GLES20.glGetAttribLocation(program, "aPosition");
+        locations = queryLocations(program);
+        uniformsDirty = true;
+        return true;
+    }
+
+    private boolean initializePosterProgram() {
+        String source = posterShaderFor(resolveShader());
+        posterProgram = ShaderProgramCache.acquire(vertexShaderFor(source), source);
+        if (posterProgram == 0) {
+            return false;
+        }
+        posterLocations = queryLocations(posterProgram);
+        return true;
+    }
+
+    private void releasePosterProgram() {
+        if (posterProgram != 0) {
+            ShaderProgramCache.release(posterProgram);
+            posterProgram = 0;
+        }
+    }
+
+    private ProgramLocations queryLocations(int program) {
+        ProgramLocations locations = new ProgramLocations();
+        locations.aPosition = GLES20.glGetAttribLocation(program, "aPosition");
         checkGlError("glGetAttribLocation aPosition");
-        if (aPositionHandle == -1) {
+        if (locations.aPosition == -1) {
             throw new RuntimeException("Could not get attrib location for aPosition");
         }
-        aTextureHandle = GLES20.glGetAttribLocation(program, "aTextureCoord");
+        locations.aTextureCoord = GLES20.glGetAttribLocation(program, "aTextureCoord");
         checkGlError("glGetAttribLocation aTextureCoord");
-        if (aTextureHandle == -1) {
+        if (locations.aTextureCoord == -1) {
             throw new RuntimeException("Could not get attrib location for aTextureCoord");
         }
 
-        uMVPMatrixHandle = GLES20.glGetUniformLocation(program, "uMVPMatrix");
+        locations.uMVPMatrix = GLES20.glGetUniformLocation(program, "uMVPMatrix");
         checkGlError("glGetUniformLocation uMVPMatrix");
-        if (uMVPMatrixHandle == -1) {
+        if (locations.uMVPMatrix == -1) {
             throw new RuntimeException("Could not get attrib location for uMVPMatrix");
         }
 
-        uSTMatrixHandle = GLES20.glGetUniformLocation(program, "uSTMatrix");
+        locations.uSTMatrix = GLES20.glGetUniformLocation(program, "uSTMatrix");
         checkGlError("glGetUniformLocation uSTMatrix");
-        if (uSTMatrixHandle == -1) {
+        if (locations.uSTMatrix == -1) {
             throw new RuntimeException("Could not get attrib location for uSTMatrix");
         }
-        return true;
+
+        locations.uKeyColor = GLES20.glGetUniformLocation(program, "uKeyColor");
+        locations.uTolerance = GLES20.glGetUniformLocation(program, "uTolerance");
+        locations.uColorRect = GLES20.glGetUniformLocation(program, "uColorRect");
+        locations.uAlphaRect = GLES20.glGetUniformLocation(program, "uAlphaRect");
+        return locations;
+    }
+
+    private static int createQuadBuffer() {
+        FloatBuffer vertices = ByteBuffer.allocateDirect(
+                TRIANGLE_VERTICES_DATA.length * FLOAT_SIZE_BYTES)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        vertices.put(TRIANGLE_VERTICES_DATA).position(0);
+
+        int[] buffers = new int[1];
+        GLES20.glGenBuffers(1, buffers, 0);
+        GLState.bindArrayBuffer(buffers[0]);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, TRIANGLE_VERTICES_DATA.length * FLOAT_SIZE_BYTES,
+                vertices, GLES20.GL_STATIC_DRAW);
+        return buffers[0];
     }
 
     private void prepareSurface() {
@@ -236,15 +540,21 @@ class VideoRenderer implements GLTextureView.Renderer, SurfaceTexture.OnFrameAva
         GLES20.glGenTextures(1, textures, 0);
 
         textureID = textures[0];
-        GLES20.glBindTexture(GL_TEXTURE_EXTERNAL_OES, textureID);
+        GLState.bindExternalTexture(textureID);
         checkGlError("glBindTexture textureID");
 
-        GLES20.glTexParameterf(GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MIN_FILTER,
+        GLES20.glTexParameterf(GLState.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MIN_FILTER,
                 GLES20.GL_NEAREST);
-        GLES20.glTexParameterf(GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MAG_FILTER,
+        GLES20.glTexParameterf(GLState.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MAG_FILTER,
                 GLES20.GL_LINEAR);
 
-        surface = new SurfaceTexture(textureID);
+        synchronized (this) {
+            // Left over from a lost context; the engine gets the new one right after
+            if (surface != null) {
+                surface.release();
+            }
+            surface = new SurfaceTexture(textureID);
+        }
         surface.setOnFrameAvailableListener(this);
 
         Surface surface = new Surface(this.surface);
@@ -255,95 +565,241 @@ class VideoRenderer implements GLTextureView.Renderer, SurfaceTexture.OnFrameAva
         }
     }
 
-    synchronized public void onFrameAvailable(SurfaceTexture surface) {
-        updateSurface = true;
+    public void onFrameAvailable(SurfaceTexture surface) {
+        OnFrameReadyListener listener;
+        boolean early = false;
+        long drawDelayNs = -1;
+        synchronized (this) {
+            updateSurface = true;
+            listener = onFrameReadyListener;
+            if (minFrameIntervalNs > 0) {
+                long now = System.nanoTime();
+                // Small tolerance, so that jitter does not skip a frame that is due
+                if (now < nextFrameDeadlineNs - minFrameIntervalNs / 10) {
+                    early = true;
+                    // Draw the latest frame once it is due, in case no later frame arrives
+                    // in time, e.g. because this was the last one before a pause. The draw
+                    // takes the slot at the deadline.
+                    if (!deferredDrawPending) {
+                        deferredDrawPending = true;
+                        drawDelayNs = nextFrameDeadlineNs - now;
+                        nextFrameDeadlineNs += minFrameIntervalNs;
+                    }
+                } else {
+                    nextFrameDeadlineNs = Math.max(nextFrameDeadlineNs + minFrameIntervalNs, now);
+                }
+            }
+        }
+        if (listener != null) {
+            if (early) {
+                listener.frameSkipped(drawDelayNs);
+            } else {
+                listener.frameReady();
+            }
+        }
     }
 
-    synchronized public void refreshShader() {
-        updateShader = true;
-    }
-
-    private int loadShader(int shaderType, String source) {
-        int shader = GLES20.glCreateShader(shaderType);
-        if (shader != 0) {
-            GLES20.glShaderSource(shader, source);
-            GLES20.glCompileShader(shader);
-            int[] compiled = new int[1];
-            GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, compiled, 0);
-            if (compiled[0] == 0) {
-                Log.e(TAG, "Could not compile shader " + shaderType + ":");
-                Log.e(TAG, GLES20.glGetShaderInfoLog(shader));
-                GLES20.glDeleteShader(shader);
-                shader = 0;
+    /**
+     * Latches the latest decoded frame without drawing it, so that a skipped frame does not
+     * hold a buffer the decoder needs. Must be called on the GL thread.
+     */
+    synchronized void latchFrame() {
+        latchFrameLocked();
+    }
+
+    private void latchFrameLocked() {
+        if (sharedStream != null) {
+            sharedTexture = sharedStream.latch(sTMatrix);
+            updateSurface = false;
+            updateTransform = sharedTexture != 0;
+        } else if (updateSurface && surface != null) {
+            surface.updateTexImage();
+            GLState.externalTextureBound(textureID);
+            surface.getTransformMatrix(sTMatrix);
+            updateSurface = false;
+            updateTransform = true;
+        }
+        if (updateTransform) {
+            frameLatched = true;
+            if (showingPoster) {
+                // Live frames from now on, with the program that is already set up
+                showingPoster = false;
+                posterChanged = true;
             }
         }
-        return shader;
     }
 
-    private int createProgram(String vertexSource, String fragmentSource) {
-        int vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, vertexSource);
-        if (vertexShader == 0) {
-            return 0;
-        }
-        int pixelShader = loadShader(GLES20.GL_FRAGMENT_SHADER, fragmentSource);
-        if (pixelShader == 0) {
-            return 0;
+    /**
+     * Draws the bitmap, a full decoded frame of a new video, until a frame is latched, e.g.
+     * while its decoder starts or while it waits for one. Null stops showing it.
+     */
+    synchronized void setPoster(Bitmap poster) {
+        frameLatched = false;
+        setPosterLocked(poster);
+    }
+
+    /**
+     * Same as {@link #setPoster(Bitmap)} for a poster that was loaded later, unless a frame of
+     * the video was latched in the meantime.
+     */
+    synchronized void setPosterIfNoFrame(Bitmap poster) {
+        if (!frameLatched) {
+            setPosterLocked(poster);
         }
+    }
 
-        int program = GLES20.glCreateProgram();
-        if (program != 0) {
-            GLES20.glAttachShader(program, vertexShader);
-            checkGlError("glAttachShader");
-            GLES20.glAttachShader(program, pixelShader);
-            checkGlError("glAttachShader");
-            GLES20.glLinkProgram(program);
-            int[] linkStatus = new int[1];
-            GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
-            if (linkStatus[0] != GLES20.GL_TRUE) {
-                Log.e(TAG, "Could not link program: ");
-                Log.e(TAG, GLES20.glGetProgramInfoLog(program));
-                GLES20.glDeleteProgram(program);
-                program = 0;
-            }
+    private void setPosterLocked(Bitmap poster) {
+        this.poster = poster;
+        showingPoster = poster != null;
+        posterChanged = true;
+    }
+
+    /**
+     * Draws the frames of a stream shared with other views instead of the frames decoded into
+     * the own surface, or stops doing so when null.
+     */
+    synchronized void setSharedStream(SharedVideoStream sharedStream) {
+        this.sharedStream = sharedStream;
+        sharedTexture = 0;
+    }
+
+    /**
+     * Caps the rate at which new frames are drawn. Frames arriving early are latched right
+     * away and drawn once they are due, unless a later frame replaces them. 0 means no limit.
+     */
+    synchronized void setMaxFps(int maxFps) {
+        minFrameIntervalNs = maxFps > 0 ? 1_000_000_000L / maxFps : 0;
+        nextFrameDeadlineNs = 0;
+        deferredDrawPending = false;
+    }
+
+    /**
+     * Recompiles the program on the next frame if the shader variant changed. Key color and
+     * accuracy are uniforms and never require a recompilation.
+     */
+    synchronized public void refreshShader() {
+        if (!resolveShader().equals(programSource)) {
+            updateShader = true;
         }
-        return program;
     }
 
-    void setAlphaColor(int color) {
+    synchronized void setAlphaColor(int color) {
         redParam = (float) Color.red(color) / COLOR_MAX_VALUE;
         greenParam = (float) Color.green(color) / COLOR_MAX_VALUE;
         blueParam = (float) Color.blue(color) / COLOR_MAX_VALUE;
+        updateKeyUniforms = true;
+    }
+
+    void setMaxFramesInFlight(int maxFramesInFlight) {
+        framePacer.setMaxFramesInFlight(maxFramesInFlight);
     }
 
-    void setCustomShader(String customShader) {
+    synchronized void setCustomShader(String customShader) {
         isCustom = true;
         shader = customShader;
     }
 
-    void setPacked(boolean isPacked) {
+    synchronized void setPacked(boolean isPacked) {
         this.isPacked = isPacked;
+        updateLayoutUniforms = true;
+    }
+
+    /**
+     * Sets where the alpha plane of a packed video sits, and its size relative to the color
+     * plane. Both only change uniforms, so switching layouts never recompiles the shader.
+     */
+    synchronized void setPackingLayout(AlphaMovieView.PackingLayout packingLayout, float alphaScale) {
+        this.packingLayout = packingLayout;
+        this.alphaScale = alphaScale;
+        computeLayoutLocked();
+        updateLayoutUniforms = true;
+    }
+
+    /**
+     * Shows a single cell of a sprite atlas, a video holding a grid of animations. Cells are
+     * numbered row by row from the top left; packed videos hold the grid in each plane. Only
+     * changes uniforms, like the packing layout.
+     */
+    synchronized void setAtlasCell(int columns, int rows, int cell) {
+        computeCellRect(columns, rows, cell, cellRect);
+        computeLayoutLocked();
+        updateLayoutUniforms = true;
+    }
+
+    private void computeLayoutLocked() {
+        packingLayout.computeRects(alphaScale, colorRect, alphaRect);
+        applyCell(cellRect, colorRect);
+        applyCell(cellRect, alphaRect);
+        Matrix.setIdentityM(cellMatrix, 0);
+        Matrix.translateM(cellMatrix, 0, cellRect[0], cellRect[1], 0);
+        Matrix.scaleM(cellMatrix, 0, cellRect[2], cellRect[3], 1);
+    }
+
+    /**
+     * Computes the rect of an atlas cell as (x, y, width, height) in UV space, with the origin
+     * at the bottom left. Cells are numbered row by row, starting at the top left.
+     */
+    static void computeCellRect(int columns, int rows, int cell, float[] cellRect) {
+        int column = cell % columns;
+        int row = cell / columns;
+        cellRect[0] = (float) column / columns;
+        cellRect[1] = 1 - (float) (row + 1) / rows;
+        cellRect[2] = 1.0f / columns;
+        cellRect[3] = 1.0f / rows;
+    }
+
+    // Narrows a plane rect down to the same cell within the plane
+    static void applyCell(float[] cellRect, float[] rect) {
+        rect[0] += cellRect[0] * rect[2];
+        rect[1] += cellRect[1] * rect[3];
+        rect[2] *= cellRect[2];
+        rect[3] *= cellRect[3];
     }
 
-    void setAccuracy(double accuracy) {
+    synchronized void setAccuracy(double accuracy) {
         if (accuracy > 1.0) {
             accuracy = 1.0;
         } else if (accuracy < 0.0) {
             accuracy = 0.0;
         }
         this.accuracy = accuracy;
+        updateKeyUniforms = true;
     }
 
-    public double getAccuracy() {
+    synchronized public double getAccuracy() {
         return accuracy;
     }
 
-    private String resolveShader() {
-        return isCustom ? shader : isPacked ?
-                alphaPackedShader : String.format(Locale.ENGLISH, alphaShader,
-                redParam, greenParam, blueParam, 1 - accuracy);
+    synchronized private String resolveShader() {
+        return isCustom ? shader : isPacked ? ALPHA_PACKED_SHADER : ALPHA_SHADER;
+    }
+
+    private static String vertexShaderFor(String fragmentShader) {
+        return fragmentShader.equals(ALPHA_PACKED_SHADER)
+                || fragmentShader.equals(ALPHA_PACKED_POSTER_SHADER) ? PACKED_VERTEX_SHADER : VERTEX_SHADER;
+    }
+
+    // Posters are regular 2D textures rather than external ones
+    private static String posterShaderFor(String fragmentShader) {
+        return fragmentShader.replaceAll("#extension GL_OES_EGL_image_external\\w* *: *require\n", "")
+                .replace("samplerExternalOES", "sampler2D");
+    }
+
+    /**
+     * Compiles the built-in chroma-key and packed programs, and their poster variants, into the
+     * shared program cache. Must be called on the shared GL thread.
+     */
+    static void preloadShaders() {
+        ShaderProgramCache.preload(VERTEX_SHADER, ALPHA_SHADER);
+        ShaderProgramCache.preload(PACKED_VERTEX_SHADER, ALPHA_PACKED_SHADER);
+        ShaderProgramCache.preload(VERTEX_SHADER, ALPHA_POSTER_SHADER);
+        ShaderProgramCache.preload(PACKED_VERTEX_SHADER, ALPHA_PACKED_POSTER_SHADER);
     }
 
     private void checkGlError(String op) {
+        if (!CHECK_GL_ERRORS) {
+            return;
+        }
         int error;
         if ((error = GLES20.glGetError()) != GLES20.GL_NO_ERROR) {
             Log.e(TAG, op + ": glError " + error);
@@ -355,8 +811,43 @@ class VideoRenderer implements GLTextureView.Renderer, SurfaceTexture.OnFrameAva
         this.onSurfacePrepareListener = onSurfacePrepareListener;
     }
 
+    synchronized void setOnFrameReadyListener(OnFrameReadyListener onFrameReadyListener) {
+        this.onFrameReadyListener = onFrameReadyListener;
+    }
+
     interface OnSurfacePrepareListener {
         void surfacePrepared(Surface surface);
     }
 
+    // Attribute and uniform locations of a program; -1 for uniforms it does not use
+    private static class ProgramLocations {
+        int aPosition;
+        int aTextureCoord;
+        int uMVPMatrix;
+        int uSTMatrix;
+        int uKeyColor;
+        int uTolerance;
+        int uColorRect;
+        int uAlphaRect;
+    }
+
+    /**
+     * Notified, on any thread, whenever the decoder produced a new frame.
+     */
+    interface OnFrameReadyListener {
+        /**
+         * The frame should be drawn.
+         */
+        void frameReady();
+
+        /**
+         * The frame arrived before the frame rate cap allows another one to be drawn. It must
+         * still be latched on the GL thread with {@link #latchFrame()}.
+         *
+         * @param drawDelayNs how long to wait before requesting a draw of the latest frame,
+         *                    or a negative value if such a draw is already scheduled.
+         */
+        void frameSkipped(long drawDelayNs);
+    }
+
 }
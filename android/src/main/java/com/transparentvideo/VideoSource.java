@@ -0,0 +1,212 @@
+package com.transparentvideo;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.media.MediaDataSource;
+import android.media.MediaMetadataRetriever;
+import android.net.Uri;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * A video an {@link AlphaMovieView} plays. It can be applied to an engine or a metadata
+ * retriever any number of times, so a view can give up its decoder and open the video again
+ * later.
+ * <p>
+ * Sources opened by the library, e.g. assets and raw resources, own their file descriptor.
+ * It stays open as long as anyone holds a reference: the creator holds the first one, and
+ * work running in the background must {@link #retain()} the source for its duration.
+ */
+abstract class VideoSource {
+    /**
+     * Identifies the video across views and launches, for caching what was learned about it,
+     * or null if it cannot be identified, e.g. a bare file descriptor. Local files include
+     * their size and modification time, so the key changes when the file does.
+     */
+    final String key;
+    private final Closeable owner;
+    // Guarded by this
+    private int references = 1;
+
+    VideoSource(String key) {
+        this(key, null);
+    }
+
+    VideoSource(String key, Closeable owner) {
+        this.key = key;
+        this.owner = owner;
+    }
+
+    /**
+     * Adds a reference, to keep the file open while the source is used.
+     *
+     * @return false if the source was already closed, and must not be used anymore.
+     */
+    synchronized boolean retain() {
+        if (references == 0) {
+            return false;
+        }
+        references++;
+        return true;
+    }
+
+    /**
+     * Drops a reference. The last one closes the file the source owns, if any.
+     */
+    void release() {
+        synchronized (this) {
+            if (references == 0 || --references > 0) {
+                return;
+            }
+        }
+        Utils.closeQuietly(owner);
+    }
+
+    abstract void applyTo(PlaybackEngine engine) throws IOException;
+
+    abstract void applyTo(MediaMetadataRetriever retriever);
+
+    static VideoSource fromUrl(final String url) {
+        String key;
+        if (url.startsWith("/")) {
+            key = fileKey(new File(url));
+        } else if (url.startsWith("file://")) {
+            key = fileKey(new File(url.substring("file://".length())));
+        } else {
+            key = "url:" + url;
+        }
+        return new VideoSource(key) {
+            @Override
+            void applyTo(PlaybackEngine engine) throws IOException {
+                engine.setDataSource(url);
+            }
+
+            @Override
+            void applyTo(MediaMetadataRetriever retriever) {
+                retriever.setDataSource(url, new HashMap<String, String>());
+            }
+        };
+    }
+
+    static VideoSource fromUri(final Context context, final Uri uri) {
+        String key = "file".equals(uri.getScheme()) ? fileKey(new File(uri.getPath())) : "uri:" + uri;
+        return new VideoSource(key) {
+            @Override
+            void applyTo(PlaybackEngine engine) throws IOException {
+                engine.setDataSource(context, uri);
+            }
+
+            @Override
+            void applyTo(MediaMetadataRetriever retriever) {
+                retriever.setDataSource(context, uri);
+            }
+        };
+    }
+
+    static VideoSource fromFileDescriptor(final FileDescriptor fd) {
+        return new VideoSource(null) {
+            @Override
+            void applyTo(PlaybackEngine engine) throws IOException {
+                engine.setDataSource(fd);
+            }
+
+            @Override
+            void applyTo(MediaMetadataRetriever retriever) {
+                retriever.setDataSource(fd);
+            }
+        };
+    }
+
+    static VideoSource fromFileDescriptor(final FileDescriptor fd, final long offset,
+                                          final long length) {
+        return fromFileDescriptor(null, fd, offset, length);
+    }
+
+    /**
+     * @param key identifies the file the descriptor belongs to, e.g. a raw resource.
+     */
+    static VideoSource fromFileDescriptor(String key, final FileDescriptor fd, final long offset,
+                                          final long length) {
+        return new VideoSource(key) {
+            @Override
+            void applyTo(PlaybackEngine engine) throws IOException {
+                engine.setDataSource(fd, offset, length);
+            }
+
+            @Override
+            void applyTo(MediaMetadataRetriever retriever) {
+                retriever.setDataSource(fd, offset, length);
+            }
+        };
+    }
+
+    /**
+     * @return the raw resource, or null if it cannot be opened, e.g. when it is compressed.
+     * @throws android.content.res.Resources.NotFoundException if there is no such resource.
+     */
+    static VideoSource fromRawResource(Context context, int resId) {
+        AssetFileDescriptor afd = context.getResources().openRawResourceFd(resId);
+        if (afd == null) {
+            return null;
+        }
+        // The offset and length change whenever the APK does
+        return fromAssetFileDescriptor("res:" + resId + ':' + afd.getStartOffset() + ':' + afd.getLength(), afd);
+    }
+
+    /**
+     * @return a source that owns the descriptor, and closes it once released.
+     */
+    static VideoSource fromAssetFileDescriptor(String key, final AssetFileDescriptor afd) {
+        return new VideoSource(key, afd) {
+            @Override
+            void applyTo(PlaybackEngine engine) throws IOException {
+                engine.setDataSource(afd.getFileDescriptor(), afd.getStartOffset(), afd.getLength());
+            }
+
+            @Override
+            void applyTo(MediaMetadataRetriever retriever) {
+                retriever.setDataSource(afd.getFileDescriptor(), afd.getStartOffset(), afd.getLength());
+            }
+        };
+    }
+
+    /**
+     * Resolves a source uri from React Native the way the view manager does: the name of a
+     * raw resource, or else a url or path. Only resource names are case-insensitive.
+     */
+    static VideoSource fromReactUri(Context context, String uri) {
+        try {
+            VideoSource source = fromRawResource(context, Utils.getRawResourceId(context, uri.toLowerCase()));
+            if (source != null) {
+                return source;
+            }
+        } catch (RuntimeException e) {
+            // Not a resource
+        }
+        return fromUrl(uri);
+    }
+
+    @TargetApi(23)
+    static VideoSource fromMediaDataSource(final MediaDataSource dataSource) {
+        return new VideoSource(null) {
+            @Override
+            void applyTo(PlaybackEngine engine) {
+                engine.setDataSource(dataSource);
+            }
+
+            @Override
+            void applyTo(MediaMetadataRetriever retriever) {
+                retriever.setDataSource(dataSource);
+            }
+        };
+    }
+
+    private static String fileKey(File file) {
+        return "file:" + file.getAbsolutePath() + ':' + file.length() + ':' + file.lastModified();
+    }
+}
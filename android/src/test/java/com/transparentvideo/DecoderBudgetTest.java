@@ -0,0 +1,76 @@
+package com.transparentvideo;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class DecoderBudgetTest {
+    private static Map<String, Integer> areas(Object... pairs) {
+        Map<String, Integer> areas = new HashMap<>();
+        for (int i = 0; i < pairs.length; i += 2) {
+            areas.put((String) pairs[i], (Integer) pairs[i + 1]);
+        }
+        return areas;
+    }
+
+    @Test
+    public void selectsLargestVisibleAreasFirst() {
+        List<String> candidates = Arrays.asList("a", "b", "c", "d");
+        Map<String, Integer> areas = areas("a", 100, "b", 400, "c", 0, "d", 250);
+
+        List<String> granted = DecoderBudget.select(candidates, areas,
+                Collections.<String>emptyList(), 2);
+
+        assertEquals(Arrays.asList("b", "d"), granted);
+    }
+
+    @Test
+    public void grantsEveryCandidateWithinBudget() {
+        List<String> candidates = Arrays.asList("a", "b");
+        Map<String, Integer> areas = areas("a", 0, "b", 0);
+
+        List<String> granted = DecoderBudget.select(candidates, areas,
+                Collections.<String>emptyList(), 4);
+
+        assertEquals(2, granted.size());
+    }
+
+    @Test
+    public void activeViewsKeepTheirDecoderOnTies() {
+        List<String> candidates = Arrays.asList("a", "b", "c");
+        Map<String, Integer> areas = areas("a", 100, "b", 100, "c", 100);
+
+        List<String> granted = DecoderBudget.select(candidates, areas, Arrays.asList("c"), 1);
+
+        assertEquals(Arrays.asList("c"), granted);
+    }
+
+    @Test
+    public void revokesActiveViewsThatRankedOut() {
+        List<String> active = Arrays.asList("a", "b", "c");
+        List<String> granted = Arrays.asList("c", "d", "a");
+
+        assertEquals(Arrays.asList("b"), DecoderBudget.revoked(active, granted));
+        assertEquals(Arrays.asList("d"), DecoderBudget.newlyGranted(active, granted));
+    }
+
+    @Test
+    public void scrollingSwapsDecodersBetweenViews() {
+        List<String> candidates = Arrays.asList("a", "b", "c");
+        List<String> active = Arrays.asList("a", "b");
+        // "a" scrolled out, "c" scrolled in
+        Map<String, Integer> areas = areas("a", 0, "b", 300, "c", 500);
+
+        List<String> granted = DecoderBudget.select(candidates, areas, active, 2);
+
+        assertEquals(Arrays.asList("c", "b"), granted);
+        assertEquals(Arrays.asList("a"), DecoderBudget.revoked(active, granted));
+        assertEquals(Arrays.asList("c"), DecoderBudget.newlyGranted(active, granted));
+    }
+}
@@ -0,0 +1,92 @@
+package com.transparentvideo;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import org.junit.Test;
+
+public class PackingLayoutTest {
+    private static final float DELTA = 1e-6f;
+
+    private final float[] colorRect = new float[4];
+    private final float[] alphaRect = new float[4];
+
+    @Test
+    public void alphaBottomSplitsTheFrameInHalves() {
+        AlphaMovieView.PackingLayout.ALPHA_BOTTOM.computeRects(1, colorRect, alphaRect);
+
+        // UV origin is the bottom left, so the color plane is the upper half
+        assertArrayEquals(new float[]{0, 0.5f, 1, 0.5f}, colorRect, DELTA);
+        assertArrayEquals(new float[]{0, 0, 1, 0.5f}, alphaRect, DELTA);
+    }
+
+    @Test
+    public void alphaTopSplitsTheFrameInHalves() {
+        AlphaMovieView.PackingLayout.ALPHA_TOP.computeRects(1, colorRect, alphaRect);
+
+        assertArrayEquals(new float[]{0, 0, 1, 0.5f}, colorRect, DELTA);
+        assertArrayEquals(new float[]{0, 0.5f, 1, 0.5f}, alphaRect, DELTA);
+    }
+
+    @Test
+    public void alphaRightSplitsTheFrameInHalves() {
+        AlphaMovieView.PackingLayout.ALPHA_RIGHT.computeRects(1, colorRect, alphaRect);
+
+        assertArrayEquals(new float[]{0, 0, 0.5f, 1}, colorRect, DELTA);
+        assertArrayEquals(new float[]{0.5f, 0, 0.5f, 1}, alphaRect, DELTA);
+    }
+
+    @Test
+    public void alphaLeftSplitsTheFrameInHalves() {
+        AlphaMovieView.PackingLayout.ALPHA_LEFT.computeRects(1, colorRect, alphaRect);
+
+        assertArrayEquals(new float[]{0.5f, 0, 0.5f, 1}, colorRect, DELTA);
+        assertArrayEquals(new float[]{0, 0, 0.5f, 1}, alphaRect, DELTA);
+    }
+
+    @Test
+    public void scaledAlphaPlaneTakesLessOfTheFrame() {
+        AlphaMovieView.PackingLayout.ALPHA_BOTTOM.computeRects(0.5f, colorRect, alphaRect);
+
+        assertArrayEquals(new float[]{0, 1 / 3f, 1, 2 / 3f}, colorRect, DELTA);
+        assertArrayEquals(new float[]{0, 0, 0.5f, 1 / 3f}, alphaRect, DELTA);
+    }
+
+    @Test
+    public void atlasCellsAreNumberedFromTheTopLeft() {
+        float[] cell = new float[4];
+
+        VideoRenderer.computeCellRect(4, 4, 0, cell);
+        assertArrayEquals(new float[]{0, 0.75f, 0.25f, 0.25f}, cell, DELTA);
+
+        VideoRenderer.computeCellRect(4, 4, 6, cell);
+        assertArrayEquals(new float[]{0.5f, 0.5f, 0.25f, 0.25f}, cell, DELTA);
+
+        VideoRenderer.computeCellRect(4, 4, 15, cell);
+        assertArrayEquals(new float[]{0.75f, 0, 0.25f, 0.25f}, cell, DELTA);
+    }
+
+    @Test
+    public void atlasCellIsTakenWithinEachPlane() {
+        float[] cell = new float[4];
+        VideoRenderer.computeCellRect(2, 2, 1, cell);
+        AlphaMovieView.PackingLayout.ALPHA_BOTTOM.computeRects(1, colorRect, alphaRect);
+
+        VideoRenderer.applyCell(cell, colorRect);
+        VideoRenderer.applyCell(cell, alphaRect);
+
+        // Top right quarter of the color plane, and of the alpha plane
+        assertArrayEquals(new float[]{0.5f, 0.75f, 0.5f, 0.25f}, colorRect, DELTA);
+        assertArrayEquals(new float[]{0.5f, 0.25f, 0.5f, 0.25f}, alphaRect, DELTA);
+    }
+
+    @Test
+    public void wholeFrameCellLeavesPlanesUnchanged() {
+        float[] cell = new float[4];
+        VideoRenderer.computeCellRect(1, 1, 0, cell);
+        AlphaMovieView.PackingLayout.ALPHA_RIGHT.computeRects(1, colorRect, alphaRect);
+
+        VideoRenderer.applyCell(cell, colorRect);
+
+        assertArrayEquals(new float[]{0, 0, 0.5f, 1}, colorRect, DELTA);
+    }
+}
@@ -0,0 +1,121 @@
+package com.transparentvideo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class SegmentTimelineTest {
+    private final SegmentTimeline timeline = new SegmentTimeline();
+
+    @Test
+    public void firstSegmentDropsFramesBeforeTheSeekPosition() {
+        timeline.restart(500_000, -1);
+        SegmentTimeline.Segment segment = timeline.segmentFor(timeline.tag(400_000));
+
+        assertFalse(segment.shows(400_000));
+        assertTrue(segment.shows(500_000));
+        assertTrue(segment.shows(10_000_000));
+    }
+
+    @Test
+    public void loopEndIsExclusive() {
+        timeline.restart(-1, 2_000_000);
+        SegmentTimeline.Segment segment = timeline.feeding();
+
+        assertTrue(segment.shows(0));
+        assertTrue(segment.shows(1_999_999));
+        assertFalse(segment.shows(2_000_000));
+    }
+
+    @Test
+    public void tagsKeepIncreasingAcrossWraps() {
+        timeline.restart(-1, 2_000_000);
+        long lastTag = timeline.tag(0);
+        lastTag = Math.max(lastTag, timeline.tag(1_000_000));
+        lastTag = Math.max(lastTag, timeline.tag(2_100_000));
+
+        timeline.wrapAround(1_000_000, 2_000_000, 5_000_000);
+        long wrappedTag = timeline.tag(1_000_000);
+
+        assertTrue(wrappedTag > lastTag);
+    }
+
+    @Test
+    public void wrappedSegmentContinuesAtTheLoopEnd() {
+        timeline.restart(-1, 2_000_000);
+        timeline.tag(0);
+        timeline.tag(2_100_000);
+        timeline.wrapAround(1_000_000, 2_000_000, 5_000_000);
+        SegmentTimeline.Segment wrapped = timeline.feeding();
+
+        // The loop start of the second iteration plays right where the first one ended
+        assertEquals(2_000_000, 1_000_000 + wrapped.timelineOffsetUs);
+        // Frames decoded from the sync frame before the loop start are not shown
+        assertFalse(wrapped.shows(900_000));
+        assertTrue(wrapped.shows(1_000_000));
+    }
+
+    @Test
+    public void wholeVideoLoopUsesTheDuration() {
+        timeline.restart(-1, -1);
+        timeline.tag(0);
+        timeline.tag(2_960_000);
+        timeline.wrapAround(0, -1, 3_000_000);
+
+        assertEquals(3_000_000, timeline.feeding().timelineOffsetUs);
+    }
+
+    @Test
+    public void wholeVideoLoopWithoutDurationUsesTheLastSample() {
+        timeline.restart(-1, -1);
+        timeline.tag(0);
+        timeline.tag(2_960_000);
+        timeline.wrapAround(0, -1, -1);
+
+        assertEquals(2_960_000, timeline.feeding().timelineOffsetUs);
+    }
+
+    @Test
+    public void timelineOffsetsAccumulateOverIterations() {
+        timeline.restart(-1, 2_000_000);
+        timeline.tag(1_900_000);
+        timeline.wrapAround(1_000_000, 2_000_000, -1);
+        timeline.tag(1_900_000);
+        timeline.wrapAround(1_000_000, 2_000_000, -1);
+
+        // Each further iteration adds the loop length
+        assertEquals(2_000_000, timeline.feeding().timelineOffsetUs);
+    }
+
+    @Test
+    public void outputFindsItsSegmentAndForgetsOlderOnes() {
+        timeline.restart(-1, 2_000_000);
+        SegmentTimeline.Segment first = timeline.feeding();
+        long firstTag = timeline.tag(1_900_000);
+        timeline.wrapAround(0, 2_000_000, -1);
+        SegmentTimeline.Segment second = timeline.feeding();
+        long secondTag = timeline.tag(0);
+
+        // Output of the first iteration still drains while the second is fed
+        assertSame(first, timeline.segmentFor(firstTag));
+        assertSame(second, timeline.segmentFor(secondTag));
+        assertSame(second, timeline.segmentFor(firstTag));
+        assertEquals(0, secondTag - second.tagBaseUs);
+    }
+
+    @Test
+    public void restartForgetsQueuedInput() {
+        timeline.restart(-1, 2_000_000);
+        timeline.tag(1_500_000);
+        timeline.wrapAround(0, 2_000_000, -1);
+
+        timeline.restart(-1, -1);
+
+        assertEquals(0, timeline.feeding().tagBaseUs);
+        assertEquals(0, timeline.feeding().timelineOffsetUs);
+        assertEquals(1_000, timeline.tag(1_000));
+    }
+}
@@ -0,0 +1,86 @@
+package com.transparentvideo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class SingleFlightTest {
+    private final SingleFlight<String> flights = new SingleFlight<>();
+
+    @Test
+    public void concurrentRequestsShareOneFlight() {
+        SingleFlight.Flight<String> flight = flights.join("video", "first");
+        assertNotNull(flight);
+        assertNull(flights.join("video", "second"));
+        assertNull(flights.join("video", "third"));
+
+        assertTrue(flights.finish(flight));
+        assertEquals(Arrays.asList("first", "second", "third"), flight.callbacks);
+    }
+
+    @Test
+    public void differentKeysRunSeparately() {
+        SingleFlight.Flight<String> first = flights.join("a", "first");
+        SingleFlight.Flight<String> second = flights.join("b", "second");
+
+        assertNotNull(first);
+        assertNotNull(second);
+        assertNotSame(first, second);
+    }
+
+    @Test
+    public void requestsWithoutKeyAreNeverShared() {
+        SingleFlight.Flight<String> first = flights.join(null, "first");
+        SingleFlight.Flight<String> second = flights.join(null, "second");
+
+        assertNotNull(first);
+        assertNotNull(second);
+        // Nothing to cache a result under
+        assertFalse(flights.finish(first));
+        assertEquals(Arrays.asList("first"), first.callbacks);
+    }
+
+    @Test
+    public void finishedFlightIsNotJoinedAgain() {
+        SingleFlight.Flight<String> first = flights.join("video", "first");
+        flights.finish(first);
+
+        SingleFlight.Flight<String> second = flights.join("video", "second");
+
+        assertNotNull(second);
+        assertEquals(Arrays.asList("first"), first.callbacks);
+    }
+
+    @Test
+    public void forgottenFlightStillAnswersItsRequests() {
+        SingleFlight.Flight<String> evicted = flights.join("video", "first");
+        flights.forget("video");
+        SingleFlight.Flight<String> current = flights.join("video", "second");
+        assertNotNull(current);
+
+        // The evicted flight completes last, and must neither cache nor steal the new requests
+        assertTrue(flights.finish(current));
+        assertFalse(flights.finish(evicted));
+        assertEquals(Arrays.asList("first"), evicted.callbacks);
+        assertEquals(Arrays.asList("second"), current.callbacks);
+    }
+
+    @Test
+    public void evictedFlightFinishingFirstKeepsTheNewOneRunning() {
+        SingleFlight.Flight<String> evicted = flights.join("video", "first");
+        flights.forget("video");
+        SingleFlight.Flight<String> current = flights.join("video", "second");
+
+        assertFalse(flights.finish(evicted));
+        assertNull(flights.join("video", "third"));
+        assertTrue(flights.finish(current));
+        assertEquals(Arrays.asList("second", "third"), current.callbacks);
+    }
+}
@@ -1,5 +1,11 @@
 import React from 'react';
-import { requireNativeComponent, StyleProp, ViewStyle } from 'react-native';
+import {
+  NativeModules,
+  Platform,
+  requireNativeComponent,
+  StyleProp,
+  ViewStyle,
+} from 'react-native';
 // @ts-ignore
 import resolveAssetSource from 'react-native/Libraries/Image/resolveAssetSource';
 
@@ -7,26 +13,107 @@ type TransparentVideoProps = {
   style: StyleProp<ViewStyle>;
   source?: any;
   loop?: boolean;
+  /**
+   * Android only. Size of the alpha plane relative to the color plane, for
+   * videos whose alpha matte was encoded at a lower resolution. Defaults to 1.
+   */
+  alphaScale?: number;
+  /**
+   * Android only. Resolution of the rendered frames relative to the size of the
+   * view, between 0 and 1. Lower values save fill rate and memory on large views.
+   */
+  renderScale?: number;
+  /**
+   * Android only. Maximum length of the longest side of the rendered frames, in
+   * physical pixels, e.g. the width of the source clip. 0 means no limit.
+   */
+  maxRenderSize?: number;
+  /**
+   * Android only. Maximum number of frames drawn per second, e.g. for
+   * decorative loops. 0 means no limit.
+   */
+  maxFps?: number;
+  /**
+   * Android only. Decodes the video track only: audio tracks are never demuxed
+   * or decoded and audio focus is never requested.
+   */
+  videoOnly?: boolean;
+  /**
+   * Android only. Number of columns and rows of a sprite atlas, a video holding
+   * a grid of animations. Defaults to 1.
+   */
+  atlasColumns?: number;
+  atlasRows?: number;
+  /**
+   * Android only. Cell of the sprite atlas to show, numbered row by row from the
+   * top left.
+   */
+  atlasCell?: number;
+  /**
+   * Android only. Named time ranges of the video, in milliseconds.
+   */
+  segments?: { [name: string]: { start: number; end: number } };
+  /**
+   * Android only. Name of the segment to loop. Switching segments seeks within
+   * the video instead of loading it again. Unset to loop the whole video again.
+   */
+  segment?: string;
+  /**
+   * Android only. Decodes the video once for all views showing the same source
+   * with this set. Shared videos loop without audio.
+   */
+  shareDecoder?: boolean;
+  /**
+   * Android only. Called once the source is prepared, with whether it contains
+   * an audio track.
+   */
+  onAudioInfo?: (event: { nativeEvent: { hasAudio: boolean } }) => void;
 };
 
 const ComponentName = 'TransparentVideoView';
 
 const TransparentVideoView = requireNativeComponent(ComponentName);
 
+function resolveSource(source: any) {
+  const resolved = resolveAssetSource(source) || {};
+  let uri = resolved.uri || '';
+  if (uri && uri.match(/^\//)) {
+    uri = `file://${uri}`;
+  }
+  return { uri, type: resolved.type || '' };
+}
+
+/**
+ * Android only. Probes a video and decodes its first frame in the background,
+ * so that a TransparentVideo mounted later with the same source shows it
+ * right away. Resolves with whether the first frame could be decoded.
+ */
+export function preload(source: any): Promise<boolean> {
+  if (Platform.OS !== 'android') {
+    return Promise.resolve(false);
+  }
+  return NativeModules.TransparentVideoModule.preload(resolveSource(source).uri);
+}
+
+/**
+ * Android only. Releases the first frame kept by preload.
+ */
+export function evict(source: any) {
+  if (Platform.OS === 'android') {
+    NativeModules.TransparentVideoModule.evict(resolveSource(source).uri);
+  }
+}
+
 class TransparentVideo extends React.PureComponent<TransparentVideoProps> {
   render() {
-    const source = resolveAssetSource(this.props.source) || {};
-    let uri = source.uri || '';
-    if (uri && uri.match(/^\//)) {
-      uri = `file://${uri}`;
-    }
+    const { uri, type } = resolveSource(this.props.source);
 
     const nativeProps = Object.assign({}, this.props);
     Object.assign(nativeProps, {
       style: nativeProps.style,
       src: {
         uri,
-        type: source.type || '',
+        type,
       },
       loop: nativeProps.loop ?? true,
     });